@@ -1,5 +1,7 @@
 package com.ashwinchat.jlox;
 
+import java.util.List;
+
 public class AstPrinter implements Expr.Visitor<String> {
     String print(Expr expr) {
         return expr.accept(this);
@@ -12,7 +14,7 @@ public class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return this.parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return this.parenthesize(SourceMap.lexeme(expr.position), expr.left, expr.right);
     }
 
     @Override
@@ -35,7 +37,7 @@ public class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+        return parenthesize(SourceMap.lexeme(expr.position), expr.right);
     }
 
     @Override
@@ -71,6 +73,16 @@ public class AstPrinter implements Expr.Visitor<String> {
         return null;
     }
 
+    @Override
+    public String visitIndexExpr(Expr.Index expr) {
+        return null;
+    }
+
+    @Override
+    public String visitSetIndexExpr(Expr.SetIndex expr) {
+        return null;
+    }
+
     @Override
     public String visitThisExpr(Expr.This expr) {
         return null;
@@ -82,15 +94,10 @@ public class AstPrinter implements Expr.Visitor<String> {
     }
 
     public static void main(String[] args) {
-        Expr expression = new Expr.Binary(
-                new Expr.Unary(
-                        new Token(TokenType.MINUS, "-", null, 1),
-                        new Expr.Literal(123)
-                ),
-                new Token(TokenType.STAR, "*", null, 1),
-                new Expr.Grouping(new Expr.Literal(45.67))
-        );
-
-        System.out.println(new AstPrinter().print(expression));
+        // Operators are printed from the source the expression was scanned from.
+        List<Token> tokens = new Scanner("-123 * (45.67);").scanTokens();
+        Stmt.Expression statement = (Stmt.Expression) new Parser(tokens).parse().get(0);
+
+        System.out.println(new AstPrinter().print(statement.expression));
     }
 }
@@ -0,0 +1,166 @@
+package com.ashwinchat.jlox;
+
+/*
+ * The sum(array), dot(left, right), scale(array, factor) and add(target, source) natives, which
+ * run a whole loop over numeric arrays in Java. scale and add change their first array in place.
+ *
+ * On number arrays the loops run over the raw doubles, with plain loops unless VectorKernels was
+ * built from java/vector (make build-vector) and the JVM was started with --add-modules
+ * jdk.incubator.vector, when they use the JDK's Vector API. The interpreter itself never needs
+ * the incubator module. Any other array of numbers works too, an element at a time. Vectorized
+ * sums add in a different order than a loop in Lox would, so they can differ from it in the last
+ * bits.
+ */
+final class Bulk {
+    interface Kernels {
+        double sum(double[] values);
+
+        double dot(double[] left, double[] right);
+
+        void scale(double[] values, double factor);
+
+        void add(double[] target, double[] source);
+    }
+
+    static final class ScalarKernels implements Kernels {
+        @Override
+        public double sum(double[] values) {
+            double sum = 0;
+            for (double value : values) {
+                sum += value;
+            }
+            return sum;
+        }
+
+        @Override
+        public double dot(double[] left, double[] right) {
+            double sum = 0;
+            for (int i = 0; i < left.length; i++) {
+                sum += left[i] * right[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public void scale(double[] values, double factor) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] *= factor;
+            }
+        }
+
+        @Override
+        public void add(double[] target, double[] source) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] += source[i];
+            }
+        }
+    }
+
+    static final Kernels KERNELS = kernels();
+
+    private Bulk() {
+    }
+
+    /*
+     * The Vector API is an incubator module, which is only loaded when the JVM is asked for it, so
+     * the class that uses it is only loaded when it is there, and only if it was built at all.
+     */
+    private static Kernels kernels() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Kernels) Class.forName("com.ashwinchat.jlox.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError error) {
+                // Fall back to the plain loops.
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    static Object sum(Object array) {
+        Indexable values = numeric(array);
+        if (values instanceof NumberArray) {
+            return Numbers.of(KERNELS.sum(((NumberArray) values).values()));
+        }
+        double sum = 0;
+        for (int i = 0; i < values.length(); i++) {
+            sum += at(values, i);
+        }
+        return Numbers.of(sum);
+    }
+
+    static Object dot(Object left, Object right) {
+        Indexable a = numeric(left);
+        Indexable b = sameLength(a, numeric(right));
+        if (a instanceof NumberArray && b instanceof NumberArray) {
+            return Numbers.of(KERNELS.dot(((NumberArray) a).values(), ((NumberArray) b).values()));
+        }
+        double sum = 0;
+        for (int i = 0; i < a.length(); i++) {
+            sum += at(a, i) * at(b, i);
+        }
+        return Numbers.of(sum);
+    }
+
+    static void scale(Object array, Object factor) {
+        Indexable values = numeric(array);
+        if (!Numbers.isNumber(factor)) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Can only scale by a number.");
+        }
+        double by = Numbers.toDouble(factor);
+        if (values instanceof NumberArray) {
+            KERNELS.scale(((NumberArray) values).values(), by);
+            return;
+        }
+        for (int i = 0; i < values.length(); i++) {
+            store(values, i, at(values, i) * by);
+        }
+    }
+
+    static void add(Object target, Object source) {
+        Indexable a = numeric(target);
+        Indexable b = sameLength(a, numeric(source));
+        if (a instanceof NumberArray && b instanceof NumberArray) {
+            KERNELS.add(((NumberArray) a).values(), ((NumberArray) b).values());
+            return;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            store(a, i, at(a, i) + at(b, i));
+        }
+    }
+
+    private static Indexable numeric(Object array) {
+        if (array instanceof Indexable) {
+            return (Indexable) array;
+        }
+        throw new RuntimeError(RuntimeError.AT_CALL, "Expected an array of numbers.");
+    }
+
+    private static Indexable sameLength(Indexable left, Indexable right) {
+        if (left.length() != right.length()) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Arrays must have the same length.");
+        }
+        return right;
+    }
+
+    private static double at(Indexable array, int index) {
+        if (array instanceof NumberArray) {
+            return ((NumberArray) array).values()[index];
+        }
+        if (array instanceof DirectArray) {
+            return ((DirectArray) array).getDouble(index);
+        }
+        Object value = array.get(index);
+        if (!Numbers.isNumber(value)) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Expected an array of numbers.");
+        }
+        return Numbers.toDouble(value);
+    }
+
+    private static void store(Indexable array, int index, double value) {
+        if (array instanceof DirectArray) {
+            ((DirectArray) array).setDouble(index, value);
+        } else {
+            array.set(index, RuntimeError.AT_CALL, Numbers.of(value));
+        }
+    }
+}
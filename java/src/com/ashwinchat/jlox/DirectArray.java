@@ -0,0 +1,183 @@
+package com.ashwinchat.jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/*
+ * An array of numbers kept outside the Java heap, so a large one costs the garbage collector
+ * nothing. DirectArray(size) makes one with every element zero, and MappedArray(path, size) maps
+ * one onto a file, growing the file if it is too short, or fitting the whole file when the size is
+ * nil. Writes to a mapped array go straight to the file and are seen by every process that maps
+ * it. Elements are doubles in the machine's byte order.
+ *
+ * Like an array, elements are read and written with index syntax or the get and set methods, and
+ * length is the number of elements. A buffer can only hold 2GB, so the elements are split across
+ * as many buffers as it takes.
+ */
+public class DirectArray extends LoxInstance implements Indexable {
+    // Elements per buffer.
+    private static final int CHUNK_BITS = 27;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final DoubleBuffer[] chunks;
+    private final int length;
+
+    // The file the elements are mapped from, if they are.
+    private final String path;
+
+    // The get and set methods, made the first time they are looked up.
+    private LoxCallable getter;
+    private LoxCallable setter;
+
+    private DirectArray(DoubleBuffer[] chunks, int length, String path) {
+        super(null);
+        this.chunks = chunks;
+        this.length = length;
+        this.path = path;
+    }
+
+    static DirectArray allocate(int length) {
+        DoubleBuffer[] chunks = new DoubleBuffer[chunks(length)];
+        try {
+            for (int i = 0; i < chunks.length; i++) {
+                int size = Math.min(CHUNK_SIZE, length - i * CHUNK_SIZE);
+                chunks[i] = ByteBuffer.allocateDirect(size * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        } catch (OutOfMemoryError error) {
+            // The JVM's limit on direct memory is reached long before the heap's.
+            throw new RuntimeError(RuntimeError.AT_CALL, "Not enough memory for " + length + " elements.");
+        }
+        return new DirectArray(chunks, length, null);
+    }
+
+    /*
+     * Maps a file, growing it to a length given as a number, or all of it for a length of nil.
+     * The whole file has to be a whole number of elements.
+     */
+    static DirectArray map(String path, Object elements) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int length;
+            if (elements != null) {
+                length = Indexable.size(elements);
+            } else if (channel.size() % Double.BYTES != 0) {
+                throw new RuntimeError(RuntimeError.AT_CALL, "Can't map '" + path + "': its size isn't a whole number of elements.");
+            } else if (channel.size() / Double.BYTES > Integer.MAX_VALUE) {
+                throw new RuntimeError(RuntimeError.AT_CALL, "Can't map '" + path + "': it has too many elements.");
+            } else {
+                length = (int) (channel.size() / Double.BYTES);
+            }
+            DoubleBuffer[] chunks = new DoubleBuffer[chunks(length)];
+            for (int i = 0; i < chunks.length; i++) {
+                long offset = (long) i * CHUNK_SIZE * Double.BYTES;
+                int size = Math.min(CHUNK_SIZE, length - i * CHUNK_SIZE);
+                // The mapping outlives the channel, and mapping past the end grows the file.
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) size * Double.BYTES)
+                        .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+            return new DirectArray(chunks, length, path);
+        } catch (IOException | UnsupportedOperationException error) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Can't map '" + path + "': " + error.getMessage());
+        }
+    }
+
+    private static int chunks(int length) {
+        return (int) (((long) length + CHUNK_SIZE - 1) >> CHUNK_BITS);
+    }
+
+    String path() {
+        return this.path;
+    }
+
+    double getDouble(int index) {
+        return this.chunks[index >>> CHUNK_BITS].get(index & (CHUNK_SIZE - 1));
+    }
+
+    void setDouble(int index, double value) {
+        this.chunks[index >>> CHUNK_BITS].put(index & (CHUNK_SIZE - 1), value);
+    }
+
+    @Override
+    public int length() {
+        return this.length;
+    }
+
+    @Override
+    public Object get(int index) {
+        return Numbers.of(this.getDouble(index));
+    }
+
+    @Override
+    public void set(int index, int position, Object value) {
+        if (!Numbers.isNumber(value)) {
+            throw new RuntimeError(position, "Can only store numbers in a DirectArray.");
+        }
+        this.setDouble(index, Numbers.toDouble(value));
+    }
+
+    @Override
+    Object get(String name, int position) {
+        if (name.equals("get")) {
+            if (this.getter != null) {
+                return this.getter;
+            }
+            return this.getter = new LoxCallable() {
+                @Override
+                public int arity() {
+                    return 1;
+                }
+
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    return DirectArray.this.get(Indexable.index(DirectArray.this, RuntimeError.AT_CALL, arguments.get(0)));
+                }
+            };
+        } else if (name.equals("set")) {
+            if (this.setter != null) {
+                return this.setter;
+            }
+            return this.setter = new LoxCallable() {
+                @Override
+                public int arity() {
+                    return 2;
+                }
+
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    Object value = arguments.get(1);
+                    DirectArray.this.set(Indexable.index(DirectArray.this, RuntimeError.AT_CALL, arguments.get(0)), RuntimeError.AT_CALL, value);
+                    return value;
+                }
+            };
+        } else if (name.equals("length")) {
+            return (long) this.length;
+        }
+
+        throw new RuntimeError(position, "Undefined property '" + name + "'.");
+    }
+
+    @Override
+    void set(String name, int position, Object value) {
+        throw new RuntimeError(position, "Can't add properties to arrays.");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        for (int i = 0; i < this.length; ++i) {
+            if (i != 0) {
+                builder.append(", ");
+            }
+            builder.append(this.getDouble(i));
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -4,7 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
-    final Environment enclosing;
+    Environment enclosing;
     private final Map<String, Object> values = new HashMap<>();
 
     void define(String name, Object value) {
@@ -19,6 +19,14 @@ public class Environment {
         this.enclosing = enclosing;
     }
 
+    /*
+     * Empties a pooled frame so it can be used again under a new enclosing environment.
+     */
+    void reset(Environment enclosing) {
+        this.enclosing = enclosing;
+        this.values.clear();
+    }
+
     Environment ancestor(int distance) {
         Environment environment = this;
         for (int i = 0; i < distance; i++) {
@@ -27,34 +35,63 @@ public class Environment {
         return environment;
     }
 
-    Object get(Token name) {
-        if (this.values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    Object get(String name, int position) {
+        if (this.values.containsKey(name)) {
+            return values.get(name);
         }
         if (this.enclosing != null) {
-            return enclosing.get(name);
+            return enclosing.get(name, position);
         }
 
-        throw new RuntimeError(name, "Undefined variable ' " + name.lexeme + "'.");
+        throw new RuntimeError(position, "Undefined variable ' " + name + "'.");
     }
 
-    void assign(Token name, Object value) {
-        if (this.values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+    void assign(String name, int position, Object value) {
+        if (this.values.containsKey(name)) {
+            values.put(name, value);
             return;
         }
         if (this.enclosing != null) {
-            this.enclosing.assign(name, value);
+            this.enclosing.assign(name, position, value);
             return;
         }
-        throw new RuntimeError(name, "Undefined variable ' " + name.lexeme + "'.");
+        throw new RuntimeError(position, "Undefined variable ' " + name + "'.");
+    }
+
+    Map<String, Object> values() {
+        return this.values;
     }
 
     Object getAt(int distance, String name) {
-        return this.ancestor(distance).values.get(name);
+        Object value = this.ancestor(distance).values.get(name);
+        if (value instanceof Upvalue) {
+            return ((Upvalue) value).value;
+        }
+        return value;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        this.ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, String name, Object value) {
+        Environment environment = this.ancestor(distance);
+        Object previous = environment.values.get(name);
+        if (previous instanceof Upvalue) {
+            ((Upvalue) previous).value = value;
+        } else {
+            environment.values.put(name, value);
+        }
+    }
+
+    /*
+     * Returns the box holding a variable, moving the variable into one the first time it is
+     * captured.
+     */
+    Upvalue upvalueAt(int distance, String name) {
+        Environment environment = this.ancestor(distance);
+        Object value = environment.values.get(name);
+        if (value instanceof Upvalue) {
+            return (Upvalue) value;
+        }
+        Upvalue upvalue = new Upvalue(value);
+        environment.values.put(name, upvalue);
+        return upvalue;
     }
 }
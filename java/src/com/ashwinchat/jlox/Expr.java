@@ -14,14 +14,17 @@ abstract class Expr {
         R visitLiteralExpr(Literal expr);
         R visitLogicalExpr(Logical expr);
         R visitSetExpr(Set expr);
+        R visitIndexExpr(Index expr);
+        R visitSetIndexExpr(SetIndex expr);
         R visitThisExpr(This expr);
         R visitSuperExpr(Super expr);
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
     }
-    static class Assign extends Expr {
-        Assign(Token name, Expr value) {
+    static final class Assign extends Expr {
+        Assign(String name, int position, Expr value) {
             this.name = name;
+            this.position = position;
             this.value = value;
         }
 
@@ -30,13 +33,21 @@ abstract class Expr {
             return visitor.visitAssignExpr(this);
         }
 
-        final Token name;
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitAssignExpr(this);
+        }
+
+        final String name;
+        final int position;
         final Expr value;
+        int slot = -1;
     }
-    static class Binary extends Expr {
-        Binary(Expr left, Token operator, Expr right) {
+    static final class Binary extends Expr {
+        Binary(Expr left, TokenType operator, int position, Expr right) {
             this.left = left;
             this.operator = operator;
+            this.position = position;
             this.right = right;
         }
 
@@ -45,14 +56,21 @@ abstract class Expr {
             return visitor.visitBinaryExpr(this);
         }
 
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitBinaryExpr(this);
+        }
+
         final Expr left;
-        final Token operator;
+        final TokenType operator;
+        final int position;
         final Expr right;
+        boolean numeric;
     }
-    static class Call extends Expr {
-        Call(Expr callee, Token paren, List<Expr> arguments) {
+    static final class Call extends Expr {
+        Call(Expr callee, int position, List<Expr> arguments) {
             this.callee = callee;
-            this.paren = paren;
+            this.position = position;
             this.arguments = arguments;
         }
 
@@ -61,14 +79,21 @@ abstract class Expr {
             return visitor.visitCallExpr(this);
         }
 
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitCallExpr(this);
+        }
+
         final Expr callee;
-        final Token paren;
+        final int position;
         final List<Expr> arguments;
+        Object checkedCallee;
     }
-    static class Get extends Expr {
-        Get(Expr object, Token name) {
+    static final class Get extends Expr {
+        Get(Expr object, String name, int position) {
             this.object = object;
             this.name = name;
+            this.position = position;
         }
 
         @Override
@@ -76,10 +101,16 @@ abstract class Expr {
             return visitor.visitGetExpr(this);
         }
 
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitGetExpr(this);
+        }
+
         final Expr object;
-        final Token name;
+        final String name;
+        final int position;
     }
-    static class Grouping extends Expr {
+    static final class Grouping extends Expr {
         Grouping(Expr expression) {
             this.expression = expression;
         }
@@ -89,9 +120,14 @@ abstract class Expr {
             return visitor.visitGroupingExpr(this);
         }
 
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitGroupingExpr(this);
+        }
+
         final Expr expression;
     }
-    static class Literal extends Expr {
+    static final class Literal extends Expr {
         Literal(Object value) {
             this.value = value;
         }
@@ -101,10 +137,15 @@ abstract class Expr {
             return visitor.visitLiteralExpr(this);
         }
 
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitLiteralExpr(this);
+        }
+
         final Object value;
     }
-    static class Logical extends Expr {
-        Logical(Expr left, Token operator, Expr right) {
+    static final class Logical extends Expr {
+        Logical(Expr left, TokenType operator, Expr right) {
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -115,14 +156,20 @@ abstract class Expr {
             return visitor.visitLogicalExpr(this);
         }
 
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitLogicalExpr(this);
+        }
+
         final Expr left;
-        final Token operator;
+        final TokenType operator;
         final Expr right;
     }
-    static class Set extends Expr {
-        Set(Expr object, Token name, Expr value) {
+    static final class Set extends Expr {
+        Set(Expr object, String name, int position, Expr value) {
             this.object = object;
             this.name = name;
+            this.position = position;
             this.value = value;
         }
 
@@ -131,13 +178,63 @@ abstract class Expr {
             return visitor.visitSetExpr(this);
         }
 
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitSetExpr(this);
+        }
+
         final Expr object;
-        final Token name;
+        final String name;
+        final int position;
         final Expr value;
     }
-    static class This extends Expr {
-        This(Token keyword) {
-            this.keyword = keyword;
+    static final class Index extends Expr {
+        Index(Expr object, int position, Expr index) {
+            this.object = object;
+            this.position = position;
+            this.index = index;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexExpr(this);
+        }
+
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitIndexExpr(this);
+        }
+
+        final Expr object;
+        final int position;
+        final Expr index;
+    }
+    static final class SetIndex extends Expr {
+        SetIndex(Expr object, int position, Expr index, Expr value) {
+            this.object = object;
+            this.position = position;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSetIndexExpr(this);
+        }
+
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitSetIndexExpr(this);
+        }
+
+        final Expr object;
+        final int position;
+        final Expr index;
+        final Expr value;
+    }
+    static final class This extends Expr {
+        This(int position) {
+            this.position = position;
         }
 
         @Override
@@ -145,12 +242,18 @@ abstract class Expr {
             return visitor.visitThisExpr(this);
         }
 
-        final Token keyword;
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitThisExpr(this);
+        }
+
+        final int position;
     }
-    static class Super extends Expr {
-        Super(Token keyword, Token method) {
-            this.keyword = keyword;
+    static final class Super extends Expr {
+        Super(int position, String method, int methodPosition) {
+            this.position = position;
             this.method = method;
+            this.methodPosition = methodPosition;
         }
 
         @Override
@@ -158,12 +261,20 @@ abstract class Expr {
             return visitor.visitSuperExpr(this);
         }
 
-        final Token keyword;
-        final Token method;
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitSuperExpr(this);
+        }
+
+        final int position;
+        final String method;
+        final int methodPosition;
+        int thisDepth = -1;
     }
-    static class Unary extends Expr {
-        Unary(Token operator, Expr right) {
+    static final class Unary extends Expr {
+        Unary(TokenType operator, int position, Expr right) {
             this.operator = operator;
+            this.position = position;
             this.right = right;
         }
 
@@ -172,12 +283,20 @@ abstract class Expr {
             return visitor.visitUnaryExpr(this);
         }
 
-        final Token operator;
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitUnaryExpr(this);
+        }
+
+        final TokenType operator;
+        final int position;
         final Expr right;
+        boolean numeric;
     }
-    static class Variable extends Expr {
-        Variable(Token name) {
+    static final class Variable extends Expr {
+        Variable(String name, int position) {
             this.name = name;
+            this.position = position;
         }
 
         @Override
@@ -185,8 +304,18 @@ abstract class Expr {
             return visitor.visitVariableExpr(this);
         }
 
-        final Token name;
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            return interpreter.visitVariableExpr(this);
+        }
+
+        final String name;
+        final int position;
+        int slot = -1;
+        GlobalEnvironment.Constant constant;
     }
 
     abstract <R> R accept (Visitor<R> visitor);
+
+    abstract Object evaluate(Interpreter interpreter);
 }
@@ -0,0 +1,655 @@
+package com.ashwinchat.jlox;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A resolved program stored as parallel int arrays instead of an Expr/Stmt object graph.
+ *
+ * Node i is described by kinds[i], three operands a[i], b[i] and c[i], the constant pool index of
+ * its name in name[i] and its source position in position[i]. Operands are node indices,
+ * constant pool indices, token types, positions, resolved depths or offsets into the lists array,
+ * depending on the kind. A list is stored in lists as its length followed by its elements.
+ */
+public class FlatAst {
+    static final int NONE = -1;
+
+    // Expression kinds.
+    static final int ASSIGN = 0;
+    static final int BINARY = 1;
+    static final int CALL = 2;
+    static final int GET = 3;
+    static final int GROUPING = 4;
+    static final int LITERAL = 5;
+    static final int LOGICAL = 6;
+    static final int SET = 7;
+    static final int THIS = 8;
+    static final int SUPER = 9;
+    static final int UNARY = 10;
+    static final int VARIABLE = 11;
+
+    // Statement kinds.
+    static final int BLOCK = 12;
+    static final int CLASS = 13;
+    static final int BREAK = 14;
+    static final int EXPRESSION = 15;
+    static final int FUNCTION = 16;
+    static final int IF = 17;
+    static final int PRINT = 18;
+    static final int RETURN = 19;
+    static final int VAR = 20;
+    static final int WHILE = 21;
+    static final int COUNTED = 22;
+
+    // Expression kinds added since.
+    static final int INDEX = 23;
+    static final int SET_INDEX = 24;
+
+    int count;
+    int[] kinds;
+    int[] a;
+    int[] b;
+    int[] c;
+    int[] name;
+    int[] position;
+    int[] lists;
+    Object[] constants;
+
+    // Offset in lists of the top-level statements.
+    int root;
+
+    FlatAst(int count, int[] kinds, int[] a, int[] b, int[] c, int[] name, int[] position,
+            int[] lists, Object[] constants, int root) {
+        this.count = count;
+        this.kinds = kinds;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.name = name;
+        this.position = position;
+        this.lists = lists;
+        this.constants = constants;
+        this.root = root;
+    }
+
+    /*
+     * Flattens statements that have already been resolved against the interpreter.
+     */
+    static FlatAst encode(List<Stmt> statements, Interpreter interpreter) {
+        return encode(statements, interpreter, new HashMap<Stmt.Function, Integer>());
+    }
+
+    /*
+     * Also records the node index of every function declaration, so that runtime values can
+     * refer to their declarations.
+     */
+    static FlatAst encode(List<Stmt> statements, Interpreter interpreter, Map<Stmt.Function, Integer> functions) {
+        Encoder encoder = new Encoder(interpreter, functions);
+        int root = encoder.statements(statements);
+        return encoder.finish(root);
+    }
+
+    private static final byte NIL = 0;
+    private static final byte NUMBER = 1;
+    private static final byte STRING = 2;
+    private static final byte TRUE = 3;
+    private static final byte FALSE = 4;
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.count);
+        out.writeInt(this.lists.length);
+        out.writeInt(this.root);
+        for (int[] column : this.columns()) {
+            for (int value : column) {
+                out.writeInt(value);
+            }
+        }
+        for (int value : this.lists) {
+            out.writeInt(value);
+        }
+
+        out.writeInt(this.constants.length);
+        for (Object constant : this.constants) {
+            if (constant == null) {
+                out.writeByte(NIL);
+            } else if (Numbers.isNumber(constant)) {
+                out.writeByte(NUMBER);
+                out.writeDouble(Numbers.toDouble(constant));
+            } else if (constant instanceof String) {
+                byte[] bytes = ((String) constant).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else {
+                out.writeByte((Boolean) constant ? TRUE : FALSE);
+            }
+        }
+    }
+
+    /*
+     * Reads what write() wrote, returning null if the data is not a valid program.
+     */
+    static FlatAst read(ByteBuffer in) {
+        int count = in.getInt();
+        int listCount = in.getInt();
+        int root = in.getInt();
+        int[][] columns = new int[6][count];
+        for (int[] column : columns) {
+            in.asIntBuffer().get(column);
+            in.position(in.position() + count * 4);
+        }
+        int[] lists = new int[listCount];
+        in.asIntBuffer().get(lists);
+        in.position(in.position() + listCount * 4);
+
+        Object[] constants = new Object[in.getInt()];
+        for (int i = 0; i < constants.length; i++) {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL:
+                    constants[i] = null;
+                    break;
+                case NUMBER:
+                    constants[i] = Numbers.of(in.getDouble());
+                    break;
+                case STRING:
+                    byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    // Names must be interned like the scanner's so they stay shared.
+                    constants[i] = new String(bytes, StandardCharsets.UTF_8).intern();
+                    break;
+                case TRUE:
+                    constants[i] = true;
+                    break;
+                case FALSE:
+                    constants[i] = false;
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        return new FlatAst(count, columns[0], columns[1], columns[2], columns[3], columns[4], columns[5],
+                lists, constants, root);
+    }
+
+    private int[][] columns() {
+        return new int[][] {
+                this.kinds, this.a, this.b, this.c, this.name, this.position
+        };
+    }
+
+    /*
+     * Moves every source position by delta, for a program loaded against a new SourceMap base.
+     */
+    void relocate(int delta) {
+        for (int i = 0; i < this.count; i++) {
+            this.position[i] += delta;
+            if (this.kinds[i] == SUPER) {
+                this.b[i] += delta;
+            } else if (this.kinds[i] == FUNCTION) {
+                int params = this.a[i];
+                for (int j = 0; j < this.lists[params] / 2; j++) {
+                    this.lists[params + 2 + j * 2] += delta;
+                }
+            }
+        }
+    }
+
+    /*
+     * Rebuilds the statements and registers their resolved depths with the interpreter.
+     */
+    List<Stmt> decode(Interpreter interpreter) {
+        return this.decode(interpreter, new HashMap<Integer, Stmt.Function>());
+    }
+
+    List<Stmt> decode(Interpreter interpreter, Map<Integer, Stmt.Function> functions) {
+        return new Decoder(interpreter, functions).statements(this.root);
+    }
+
+    private static class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private final Interpreter interpreter;
+        private final Map<Stmt.Function, Integer> functions;
+        private final Map<Object, Integer> constantIndex = new HashMap<>();
+        private final List<Object> constants = new ArrayList<>();
+        private int count = 0;
+        private int[] kinds = new int[64];
+        private int[] a = new int[64];
+        private int[] b = new int[64];
+        private int[] c = new int[64];
+        private int[] name = new int[64];
+        private int[] position = new int[64];
+        private int listCount = 0;
+        private int[] lists = new int[64];
+
+        Encoder(Interpreter interpreter, Map<Stmt.Function, Integer> functions) {
+            this.interpreter = interpreter;
+            this.functions = functions;
+        }
+
+        FlatAst finish(int root) {
+            return new FlatAst(
+                    this.count,
+                    Arrays.copyOf(this.kinds, this.count),
+                    Arrays.copyOf(this.a, this.count),
+                    Arrays.copyOf(this.b, this.count),
+                    Arrays.copyOf(this.c, this.count),
+                    Arrays.copyOf(this.name, this.count),
+                    Arrays.copyOf(this.position, this.count),
+                    Arrays.copyOf(this.lists, this.listCount),
+                    this.constants.toArray(),
+                    root
+            );
+        }
+
+        private int node(int kind, int a, int b, int c) {
+            return this.node(kind, a, b, c, null, 0);
+        }
+
+        private int node(int kind, int a, int b, int c, String name, int position) {
+            if (this.count == this.kinds.length) {
+                int capacity = this.count * 2;
+                this.kinds = Arrays.copyOf(this.kinds, capacity);
+                this.a = Arrays.copyOf(this.a, capacity);
+                this.b = Arrays.copyOf(this.b, capacity);
+                this.c = Arrays.copyOf(this.c, capacity);
+                this.name = Arrays.copyOf(this.name, capacity);
+                this.position = Arrays.copyOf(this.position, capacity);
+            }
+            this.kinds[this.count] = kind;
+            this.a[this.count] = a;
+            this.b[this.count] = b;
+            this.c[this.count] = c;
+            this.name[this.count] = name == null ? NONE : this.constant(name);
+            this.position[this.count] = position;
+            return this.count++;
+        }
+
+        private int constant(Object value) {
+            Integer index = this.constantIndex.get(value);
+            if (index == null) {
+                index = this.constants.size();
+                this.constants.add(value);
+                this.constantIndex.put(value, index);
+            }
+            return index;
+        }
+
+        private int list(int[] elements) {
+            while (this.listCount + elements.length + 1 > this.lists.length) {
+                this.lists = Arrays.copyOf(this.lists, this.lists.length * 2);
+            }
+            int offset = this.listCount;
+            this.lists[this.listCount++] = elements.length;
+            for (int element : elements) {
+                this.lists[this.listCount++] = element;
+            }
+            return offset;
+        }
+
+        int statements(List<? extends Stmt> statements) {
+            int[] elements = new int[statements.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = this.stmt(statements.get(i));
+            }
+            return this.list(elements);
+        }
+
+        private int expressions(List<Expr> expressions) {
+            int[] elements = new int[expressions.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = this.expr(expressions.get(i));
+            }
+            return this.list(elements);
+        }
+
+        // Each parameter is stored as a name constant followed by its position, and each upvalue
+        // as a name constant followed by its depth.
+        private int names(String[] names, int[] values) {
+            if (names == null) {
+                return NONE;
+            }
+            int[] elements = new int[names.length * 2];
+            for (int i = 0; i < names.length; i++) {
+                elements[i * 2] = this.constant(names[i]);
+                elements[i * 2 + 1] = values[i];
+            }
+            return this.list(elements);
+        }
+
+        private int stmt(Stmt stmt) {
+            return stmt.accept(this);
+        }
+
+        private int expr(Expr expr) {
+            if (expr == null) {
+                return NONE;
+            }
+            return expr.accept(this);
+        }
+
+        private int depth(Expr expr) {
+            Integer depth = this.interpreter.depthOf(expr);
+            return depth == null ? NONE : depth;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return this.node(ASSIGN, this.expr(expr.value), NONE, this.depth(expr), expr.name, expr.position);
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int left = this.expr(expr.left);
+            int right = this.expr(expr.right);
+            return this.node(BINARY, left, right, expr.operator.ordinal(), null, expr.position);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int callee = this.expr(expr.callee);
+            int arguments = this.expressions(expr.arguments);
+            return this.node(CALL, callee, arguments, NONE, null, expr.position);
+        }
+
+        @Override
+        public Integer visitGetExpr(Expr.Get expr) {
+            return this.node(GET, this.expr(expr.object), NONE, NONE, expr.name, expr.position);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return this.node(GROUPING, this.expr(expr.expression), NONE, NONE);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return this.node(LITERAL, this.constant(expr.value), NONE, NONE);
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            int left = this.expr(expr.left);
+            int right = this.expr(expr.right);
+            return this.node(LOGICAL, left, right, expr.operator.ordinal());
+        }
+
+        @Override
+        public Integer visitSetExpr(Expr.Set expr) {
+            int object = this.expr(expr.object);
+            int value = this.expr(expr.value);
+            return this.node(SET, object, value, NONE, expr.name, expr.position);
+        }
+
+        @Override
+        public Integer visitIndexExpr(Expr.Index expr) {
+            int object = this.expr(expr.object);
+            int index = this.expr(expr.index);
+            return this.node(INDEX, object, index, NONE, null, expr.position);
+        }
+
+        @Override
+        public Integer visitSetIndexExpr(Expr.SetIndex expr) {
+            int object = this.expr(expr.object);
+            int index = this.expr(expr.index);
+            int value = this.expr(expr.value);
+            return this.node(SET_INDEX, object, index, value, null, expr.position);
+        }
+
+        @Override
+        public Integer visitThisExpr(Expr.This expr) {
+            return this.node(THIS, NONE, NONE, this.depth(expr), null, expr.position);
+        }
+
+        @Override
+        public Integer visitSuperExpr(Expr.Super expr) {
+            return this.node(SUPER, expr.thisDepth, expr.methodPosition, this.depth(expr), expr.method, expr.position);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return this.node(UNARY, this.expr(expr.right), NONE, expr.operator.ordinal(), null, expr.position);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return this.node(VARIABLE, NONE, NONE, this.depth(expr), expr.name, expr.position);
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            return this.node(BLOCK, this.statements(stmt.statements), NONE, stmt.scoped ? 1 : 0);
+        }
+
+        @Override
+        public Integer visitClassStmt(Stmt.Class stmt) {
+            int superclass = this.expr(stmt.superclass);
+            int methods = this.statements(stmt.methods);
+            int upvalues = this.names(stmt.upvalues, stmt.upvalueDepths);
+            return this.node(CLASS, superclass, methods, upvalues, stmt.name, stmt.position);
+        }
+
+        @Override
+        public Integer visitBreakStmt(Stmt.Break stmt) {
+            return this.node(BREAK, NONE, NONE, NONE);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return this.node(EXPRESSION, this.expr(stmt.expression), NONE, NONE);
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            int params = this.names(stmt.params, stmt.paramPositions);
+            int body = this.statements(stmt.body);
+            // Methods have no upvalues of their own.
+            int upvalues = this.names(stmt.upvalues, stmt.upvalueDepths);
+            int node = this.node(FUNCTION, params, body, upvalues, stmt.name, stmt.position);
+            this.functions.put(stmt, node);
+            return node;
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            int condition = this.expr(stmt.condition);
+            int thenBranch = this.stmt(stmt.thenBranch);
+            int elseBranch = stmt.elseBranch == null ? NONE : this.stmt(stmt.elseBranch);
+            return this.node(IF, condition, thenBranch, elseBranch);
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return this.node(PRINT, this.expr(stmt.expression), NONE, NONE);
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            return this.node(RETURN, this.expr(stmt.value), NONE, NONE, null, stmt.position);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            return this.node(VAR, this.expr(stmt.initializer), NONE, NONE, stmt.name, stmt.position);
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            int condition = this.expr(stmt.condition);
+            int body = this.stmt(stmt.body);
+            return this.node(WHILE, condition, body, NONE);
+        }
+
+        // The variable, condition, step constant and read flag of a counted loop share a list.
+        @Override
+        public Integer visitCountedStmt(Stmt.Counted stmt) {
+            int variable = this.stmt(stmt.variable);
+            int condition = this.expr(stmt.condition);
+            int header = this.list(new int[] {variable, condition, this.constant(stmt.step), stmt.read ? 1 : 0});
+            int body = this.stmt(stmt.body);
+            return this.node(COUNTED, header, body, NONE);
+        }
+    }
+
+    private class Decoder {
+        private final Interpreter interpreter;
+        private final Map<Integer, Stmt.Function> functions;
+
+        Decoder(Interpreter interpreter, Map<Integer, Stmt.Function> functions) {
+            this.interpreter = interpreter;
+            this.functions = functions;
+        }
+
+        private String name(int node) {
+            return (String) constants[name[node]];
+        }
+
+        private <T> List<T> statements(int offset) {
+            int length = lists[offset];
+            List<T> statements = new ArrayList<>(length);
+            for (int i = 1; i <= length; i++) {
+                @SuppressWarnings("unchecked")
+                T stmt = (T) this.stmt(lists[offset + i]);
+                statements.add(stmt);
+            }
+            return statements;
+        }
+
+        private String[] names(int offset) {
+            if (offset == NONE) {
+                return null;
+            }
+            String[] names = new String[lists[offset] / 2];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = (String) constants[lists[offset + 1 + i * 2]];
+            }
+            return names;
+        }
+
+        private int[] values(int offset) {
+            if (offset == NONE) {
+                return null;
+            }
+            int[] values = new int[lists[offset] / 2];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = lists[offset + 2 + i * 2];
+            }
+            return values;
+        }
+
+        private List<Expr> expressions(int offset) {
+            int length = lists[offset];
+            List<Expr> expressions = new ArrayList<>(length);
+            for (int i = 1; i <= length; i++) {
+                expressions.add(this.expr(lists[offset + i]));
+            }
+            return expressions;
+        }
+
+        private <T extends Expr> T resolved(T expr, int depth) {
+            if (depth != NONE) {
+                this.interpreter.resolve(expr, depth);
+            }
+            return expr;
+        }
+
+        private Expr expr(int node) {
+            if (node == NONE) {
+                return null;
+            }
+
+            switch (kinds[node]) {
+                case ASSIGN:
+                    return this.resolved(new Expr.Assign(this.name(node), position[node], this.expr(a[node])), c[node]);
+                case BINARY:
+                    return new Expr.Binary(
+                            this.expr(a[node]), TokenType.values()[c[node]], position[node], this.expr(b[node]));
+                case CALL:
+                    return new Expr.Call(this.expr(a[node]), position[node], this.expressions(b[node]));
+                case GET:
+                    return new Expr.Get(this.expr(a[node]), this.name(node), position[node]);
+                case GROUPING:
+                    return new Expr.Grouping(this.expr(a[node]));
+                case LITERAL:
+                    return new Expr.Literal(constants[a[node]]);
+                case LOGICAL:
+                    return new Expr.Logical(this.expr(a[node]), TokenType.values()[c[node]], this.expr(b[node]));
+                case SET:
+                    return new Expr.Set(this.expr(a[node]), this.name(node), position[node], this.expr(b[node]));
+                case INDEX:
+                    return new Expr.Index(this.expr(a[node]), position[node], this.expr(b[node]));
+                case SET_INDEX:
+                    return new Expr.SetIndex(this.expr(a[node]), position[node], this.expr(b[node]), this.expr(c[node]));
+                case THIS:
+                    return this.resolved(new Expr.This(position[node]), c[node]);
+                case SUPER:
+                    Expr.Super expr = new Expr.Super(position[node], this.name(node), b[node]);
+                    expr.thisDepth = a[node];
+                    return this.resolved(expr, c[node]);
+                case UNARY:
+                    return new Expr.Unary(TokenType.values()[c[node]], position[node], this.expr(a[node]));
+                case VARIABLE:
+                    return this.resolved(new Expr.Variable(this.name(node), position[node]), c[node]);
+            }
+            throw new IllegalStateException("Not an expression node: " + kinds[node]);
+        }
+
+        private Stmt stmt(int node) {
+            switch (kinds[node]) {
+                case BLOCK:
+                    return new Stmt.Block(this.statements(a[node]), c[node] != 0);
+                case CLASS:
+                    Stmt.Class klass = new Stmt.Class(
+                            this.name(node),
+                            position[node],
+                            (Expr.Variable) this.expr(a[node]),
+                            this.<Stmt.Function>statements(b[node]));
+                    klass.upvalues = this.names(c[node]);
+                    klass.upvalueDepths = this.values(c[node]);
+                    return klass;
+                case BREAK:
+                    return new Stmt.Break();
+                case EXPRESSION:
+                    return new Stmt.Expression(this.expr(a[node]));
+                case FUNCTION:
+                    Stmt.Function function = new Stmt.Function(
+                            this.name(node),
+                            position[node],
+                            this.names(a[node]),
+                            this.values(a[node]),
+                            this.statements(b[node]));
+                    function.upvalues = this.names(c[node]);
+                    function.upvalueDepths = this.values(c[node]);
+                    this.functions.put(node, function);
+                    return function;
+                case IF:
+                    Stmt elseBranch = c[node] == NONE ? null : this.stmt(c[node]);
+                    return new Stmt.If(this.expr(a[node]), this.stmt(b[node]), elseBranch);
+                case PRINT:
+                    return new Stmt.Print(this.expr(a[node]));
+                case RETURN:
+                    return new Stmt.Return(position[node], this.expr(a[node]));
+                case VAR:
+                    return new Stmt.Var(this.name(node), position[node], this.expr(a[node]));
+                case WHILE:
+                    return new Stmt.While(this.expr(a[node]), this.stmt(b[node]));
+                case COUNTED:
+                    int header = a[node];
+                    return new Stmt.Counted(
+                            (Stmt.Var) this.stmt(lists[header + 1]),
+                            (Expr.Binary) this.expr(lists[header + 2]),
+                            Numbers.toDouble(constants[lists[header + 3]]),
+                            lists[header + 4] != 0,
+                            this.stmt(b[node]));
+            }
+            throw new IllegalStateException("Not a statement node: " + kinds[node]);
+        }
+    }
+}
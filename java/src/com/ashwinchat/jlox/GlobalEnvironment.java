@@ -0,0 +1,152 @@
+package com.ashwinchat.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The outermost environment, which keeps its variables in an array of slots.
+ *
+ * A global name gets its slot the first time it is declared or referenced anywhere, and slots are
+ * numbered the same way in every interpreter, so a variable or assignment node can remember its
+ * slot and index the array instead of hashing its name on every execution.
+ *
+ * Most globals are functions and classes that are defined once and never touched again, so a
+ * global's first definition is also recorded as a Constant that reference sites can keep. The
+ * Constant is invalidated as soon as the global is assigned or defined again.
+ */
+class GlobalEnvironment extends Environment {
+    // Fills the slots of names that have been referenced but not defined yet.
+    private static final Object UNDEFINED = new Object();
+
+    private static final Map<String, Integer> slots = new HashMap<>();
+    private static final List<String> names = new ArrayList<>();
+
+    private Object[] values;
+    private Constant[] constants;
+
+    static class Constant {
+        final GlobalEnvironment owner;
+        final Object value;
+        boolean valid = true;
+
+        Constant(GlobalEnvironment owner, Object value) {
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+
+    GlobalEnvironment() {
+        this(new Object[0]);
+    }
+
+    /*
+     * Inherited globals were defined in another environment, so a fork starts without constants.
+     */
+    private GlobalEnvironment(Object[] values) {
+        this.values = values;
+        this.constants = new Constant[values.length];
+    }
+
+    /*
+     * Returns the slot of a global name, giving it the next free one if it has none yet.
+     */
+    static synchronized int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(name, slot);
+            names.add(name);
+        }
+        return slot;
+    }
+
+    private static synchronized String name(int slot) {
+        return names.get(slot);
+    }
+
+    /*
+     * Returns a copy of these globals that can be changed without affecting them.
+     */
+    GlobalEnvironment fork() {
+        return new GlobalEnvironment(this.values.clone());
+    }
+
+    Object get(int slot, int position) {
+        Object value = slot < this.values.length ? this.values[slot] : UNDEFINED;
+        if (value == UNDEFINED) {
+            throw new RuntimeError(position, "Undefined variable ' " + name(slot) + "'.");
+        }
+        return value;
+    }
+
+    void assign(int slot, int position, Object value) {
+        if (slot >= this.values.length || this.values[slot] == UNDEFINED) {
+            throw new RuntimeError(position, "Undefined variable ' " + name(slot) + "'.");
+        }
+        this.invalidate(slot);
+        this.values[slot] = value;
+    }
+
+    void define(int slot, Object value) {
+        if (slot >= this.values.length) {
+            int length = this.values.length;
+            this.values = Arrays.copyOf(this.values, Math.max(slot + 1, length * 2));
+            Arrays.fill(this.values, length, this.values.length, UNDEFINED);
+        }
+        if (slot >= this.constants.length) {
+            this.constants = Arrays.copyOf(this.constants, this.values.length);
+        }
+
+        if (this.values[slot] == UNDEFINED) {
+            this.constants[slot] = new Constant(this, value);
+        } else {
+            this.invalidate(slot);
+        }
+        this.values[slot] = value;
+    }
+
+    /*
+     * Returns the global in a slot if it has only been defined once, or null.
+     */
+    Constant constant(int slot) {
+        return slot < this.constants.length ? this.constants[slot] : null;
+    }
+
+    private void invalidate(int slot) {
+        Constant constant = this.constants[slot];
+        if (constant != null) {
+            constant.valid = false;
+            this.constants[slot] = null;
+        }
+    }
+
+    @Override
+    void define(String name, Object value) {
+        this.define(slot(name), value);
+    }
+
+    @Override
+    Object get(String name, int position) {
+        return this.get(slot(name), position);
+    }
+
+    @Override
+    void assign(String name, int position, Object value) {
+        this.assign(slot(name), position, value);
+    }
+
+    @Override
+    Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (int slot = 0; slot < this.values.length; slot++) {
+            if (this.values[slot] != UNDEFINED) {
+                values.put(name(slot), this.values[slot]);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,38 @@
+package com.ashwinchat.jlox;
+
+/*
+ * A value whose elements are read with 'a[i]' and written with 'a[i] = v'. The interpreter checks
+ * that an index is an integer below length() before passing it on.
+ */
+interface Indexable {
+    int length();
+
+    Object get(int index);
+
+    void set(int index, int position, Object value);
+
+    /*
+     * Checks that a value is an integer index into an array, reporting it at a position if not.
+     */
+    static int index(Indexable array, int position, Object index) {
+        if (!(index instanceof Long)) {
+            throw new RuntimeError(position, "Index must be an integer.");
+        }
+        long value = (long) index;
+        if (value < 0 || value >= array.length()) {
+            throw new RuntimeError(position, "Index out of bounds.");
+        }
+        return (int) value;
+    }
+
+    /*
+     * Checks that a value is a size an array can be made with, truncating it like the array
+     * natives always have.
+     */
+    static int size(Object size) {
+        if (!Numbers.isNumber(size) || !(Numbers.toDouble(size) >= 0) || Numbers.toDouble(size) > Integer.MAX_VALUE) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Size must be a non-negative number.");
+        }
+        return Numbers.toInt(size);
+    }
+}
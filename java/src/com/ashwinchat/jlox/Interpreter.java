@@ -1,19 +1,55 @@
 package com.ashwinchat.jlox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    final GlobalEnvironment globals;
+    private Environment environment;
     private final Map<Expr, Integer> locals = new HashMap<>();
 
+    // The interpreter this one was forked from, whose globals and resolutions show through.
+    private final Interpreter base;
+
+    // Function bodies left to be resolved against this interpreter that haven't been yet. Bodies
+    // are lists, so they are told apart by identity.
+    private final Set<LazyBody> unresolved = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Set once this interpreter has been forked, after which its resolutions never change.
+    private boolean frozen = false;
+
+    // Environments for function calls and blocks, which are reused because closures only keep the
+    // Upvalues they capture, never the environment itself.
+    private Environment[] frames = new Environment[16];
+    private int frameCount = 0;
+
+    // Built-in functions by global name, so snapshots can refer to them.
+    final Map<String, LoxCallable> natives;
+
+    static final int DEFAULT_MAX_DEPTH = 10000;
+
+    // How many calls can be in progress before a Lox stack overflow is reported.
+    int maxDepth = DEFAULT_MAX_DEPTH;
+    private int depth = 0;
+
+    // Records the functions called, while a script is being profiled.
+    Profile profile = null;
+
     private static class BreakException extends RuntimeException {}
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
+        this.globals = new GlobalEnvironment();
+        this.environment = this.globals;
+        this.base = null;
+        this.natives = new HashMap<>();
+
+        this.defineNative("clock", new LoxCallable() {
             @Override
             public int arity() {
                 return 0;
@@ -21,7 +57,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
+                return Numbers.of((double) System.currentTimeMillis() / 1000.0);
             }
 
             @Override
@@ -30,7 +66,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         });
 
-        globals.define("Array", new LoxCallable() {
+        this.defineNative("Array", new LoxCallable() {
             @Override
             public int arity() {
                 return 1;
@@ -38,21 +74,247 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                int size = (int)(double) arguments.get(0);
+                int size = Indexable.size(arguments.get(0));
                 return new LoxArray(size);
             }
         });
+
+        this.defineNative("List", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 0;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return new LoxList();
+            }
+        });
+
+        this.defineNative("Map", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 0;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return new LoxMap();
+            }
+        });
+
+        this.defineNative("Table", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof Indexable)) {
+                    throw new RuntimeError(RuntimeError.AT_CALL, "Expected a list of field names.");
+                }
+                Indexable fields = (Indexable) arguments.get(0);
+                String[] names = new String[fields.length()];
+                for (int i = 0; i < names.length; i++) {
+                    if (!(fields.get(i) instanceof String)) {
+                        throw new RuntimeError(RuntimeError.AT_CALL, "Expected a list of field names.");
+                    }
+                    names[i] = (String) fields.get(i);
+                }
+                return new LoxTable(names);
+            }
+        });
+
+        this.defineNative("sort", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Sorting.sort(interpreter, arguments.get(0), arguments.get(1), false);
+                return null;
+            }
+        });
+
+        this.defineNative("parallelSort", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Sorting.sort(interpreter, arguments.get(0), arguments.get(1), true);
+                return null;
+            }
+        });
+
+        this.defineNative("binarySearch", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 3;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return Sorting.binarySearch(interpreter, arguments.get(0), arguments.get(1), arguments.get(2));
+            }
+        });
+
+        this.defineNative("sum", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return Bulk.sum(arguments.get(0));
+            }
+        });
+
+        this.defineNative("dot", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return Bulk.dot(arguments.get(0), arguments.get(1));
+            }
+        });
+
+        this.defineNative("scale", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Bulk.scale(arguments.get(0), arguments.get(1));
+                return null;
+            }
+        });
+
+        this.defineNative("add", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Bulk.add(arguments.get(0), arguments.get(1));
+                return null;
+            }
+        });
+
+        this.defineNative("NumberArray", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                int size = Indexable.size(arguments.get(0));
+                return new NumberArray(size);
+            }
+        });
+
+        this.defineNative("DirectArray", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                int size = Indexable.size(arguments.get(0));
+                return DirectArray.allocate(size);
+            }
+        });
+
+        this.defineNative("MappedArray", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof String)) {
+                    throw new RuntimeError(RuntimeError.AT_CALL, "Expected a file path.");
+                }
+                // A nil size maps the whole file.
+                return DirectArray.map((String) arguments.get(0), arguments.get(1));
+            }
+        });
+    }
+
+    private Interpreter(Interpreter base) {
+        this.globals = base.globals.fork();
+        this.environment = this.globals;
+        this.base = base;
+        this.natives = base.natives;
+        this.maxDepth = base.maxDepth;
+    }
+
+    /*
+     * Returns an interpreter that starts with this one's globals. Only the array of global slots
+     * is copied, so forks never see each other's globals, and throwing a fork away is all it takes
+     * to reset. This interpreter must not run anything once it has been forked. Instances, arrays
+     * and closed-over variables reachable from the globals are still shared.
+     *
+     * Forks can run on threads of their own and read this interpreter's resolutions as they go,
+     * so the first fork resolves every function body that was left for later, and from then on
+     * nothing resolves against this interpreter again. A fork's own programs, and the bodies they
+     * leave for later, are resolved against the fork.
+     */
+    synchronized Interpreter fork() {
+        if (!this.frozen) {
+            // Each body takes itself off the list as it is resolved.
+            for (LazyBody body : new ArrayList<>(this.unresolved)) {
+                body.resolve();
+            }
+            this.frozen = true;
+        }
+        return new Interpreter(this);
+    }
+
+    void resolveLater(LazyBody body) {
+        this.unresolved.add(body);
+    }
+
+    void resolved(LazyBody body) {
+        this.unresolved.remove(body);
+    }
+
+    private void defineNative(String name, LoxCallable function) {
+        this.natives.put(name, function);
+        this.globals.define(name, function);
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = this.evaluate(expr.value);
 
-        Integer distance = this.locals.get(expr);
+        if (expr.slot >= 0) {
+            this.globals.assign(expr.slot, expr.position, value);
+            return value;
+        }
+
+        Integer distance = this.depthOf(expr);
         if (distance != null) {
             this.environment.assignAt(distance, expr.name, value);
         } else {
-            this.globals.assign(expr.name, value);
+            expr.slot = GlobalEnvironment.slot(expr.name);
+            this.globals.assign(expr.slot, expr.position, value);
         }
 
         return value;
@@ -60,10 +322,45 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        this.executeBlock(stmt.statements, new Environment(this.environment));
+        if (!stmt.scoped) {
+            for (Stmt statement : stmt.statements) {
+                this.execute(statement);
+            }
+            return null;
+        }
+
+        Environment frame = this.pushFrame(this.environment);
+        try {
+            this.executeBlock(stmt.statements, frame);
+        } finally {
+            this.popFrame();
+        }
         return null;
     }
 
+    /*
+     * Returns an empty environment for a call or block, which must be released with popFrame.
+     */
+    Environment pushFrame(Environment enclosing) {
+        if (this.frameCount == this.frames.length) {
+            this.frames = Arrays.copyOf(this.frames, this.frameCount * 2);
+        }
+        Environment frame = this.frames[this.frameCount];
+        if (frame == null) {
+            frame = new Environment(enclosing);
+            this.frames[this.frameCount] = frame;
+        } else {
+            frame.reset(enclosing);
+        }
+        this.frameCount++;
+        return frame;
+    }
+
+    // Frames are cleared when released so that they don't keep their values alive.
+    void popFrame() {
+        this.frames[--this.frameCount].reset(null);
+    }
+
     void executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
@@ -81,37 +378,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object left = this.evaluate(expr.left);
         Object right = this.evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        if (expr.numeric) {
+            return this.numeric(expr.operator, left, right);
+        }
+
+        switch (expr.operator) {
             case GREATER:
-                this.checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
+                this.checkNumberOperands(expr.position, left, right);
+                return Numbers.greater(left, right);
             case GREATER_EQUAL:
-                this.checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
+                this.checkNumberOperands(expr.position, left, right);
+                return Numbers.greaterEqual(left, right);
             case LESS:
-                this.checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
+                this.checkNumberOperands(expr.position, left, right);
+                return Numbers.less(left, right);
             case LESS_EQUAL:
-                this.checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
+                this.checkNumberOperands(expr.position, left, right);
+                return Numbers.lessEqual(left, right);
             case MINUS:
-                this.checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+                this.checkNumberOperands(expr.position, left, right);
+                return Numbers.subtract(left, right);
             case SLASH:
-                this.checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
+                this.checkNumberOperands(expr.position, left, right);
+                return Numbers.divide(left, right);
             case STAR:
-                this.checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+                this.checkNumberOperands(expr.position, left, right);
+                return Numbers.multiply(left, right);
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    this.checkNumberOperands(expr.operator, left, right);
-                    return (double) left + (double) right;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+                    return Numbers.add(left, right);
                 }
                 if (left instanceof String && right instanceof String) {
                     return (String) left + (String) right;
                 }
-                if (left instanceof String && right instanceof Double) {
+                if (left instanceof String && Numbers.isNumber(right)) {
                     return (String) left + this.stringify(right);
                 }
                 break;
@@ -123,10 +423,48 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    /*
+     * Applies an operator to operands that type inference proved to be numbers.
+     */
+    private Object numeric(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case GREATER:
+                return Numbers.greater(left, right);
+            case GREATER_EQUAL:
+                return Numbers.greaterEqual(left, right);
+            case LESS:
+                return Numbers.less(left, right);
+            case LESS_EQUAL:
+                return Numbers.lessEqual(left, right);
+            case MINUS:
+                return Numbers.subtract(left, right);
+            case SLASH:
+                return Numbers.divide(left, right);
+            case STAR:
+                return Numbers.multiply(left, right);
+            case PLUS:
+                return Numbers.add(left, right);
+        }
+
+        // unreachable code
+        return null;
+    }
+
     void resolve(Expr expr, int depth) {
+        if (this.frozen) {
+            throw new IllegalStateException("Can't resolve against an interpreter that has been forked.");
+        }
         this.locals.put(expr, depth);
     }
 
+    Integer depthOf(Expr expr) {
+        Integer depth = this.locals.get(expr);
+        if (depth == null && this.base != null) {
+            return this.base.depthOf(expr);
+        }
+        return depth;
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return this.evaluate(expr.expression);
@@ -140,12 +478,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = this.evaluate(expr.right);
-        switch (expr.operator.type) {
+        switch (expr.operator) {
             case BANG:
                 return !this.truthy(right);
             case MINUS:
-                this.checkNumberOperand(expr.operator, right);
-                return -(double) right;
+                if (!expr.numeric) {
+                    this.checkNumberOperand(expr.position, right);
+                }
+                return Numbers.negate(right);
         }
 
         // unreachable code
@@ -154,16 +494,30 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return this.lookUpVariable(expr.name, expr);
-    }
+        // Global references remember their slot and skip the lookup of their depth.
+        if (expr.slot >= 0) {
+            GlobalEnvironment.Constant constant = expr.constant;
+            if (constant != null && constant.valid && constant.owner == this.globals) {
+                return constant.value;
+            }
+            return this.lookUpGlobal(expr);
+        }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = this.locals.get(expr);
+        Integer distance = this.depthOf(expr);
         if (distance != null) {
-            return this.environment.getAt(distance, name.lexeme);
-        } else {
-            return this.globals.get(name);
+            return this.environment.getAt(distance, expr.name);
+        }
+        expr.slot = GlobalEnvironment.slot(expr.name);
+        return this.lookUpGlobal(expr);
+    }
+
+    private Object lookUpGlobal(Expr.Variable expr) {
+        Object value = this.globals.get(expr.slot, expr.position);
+        GlobalEnvironment.Constant constant = this.globals.constant(expr.slot);
+        if (constant != null) {
+            expr.constant = constant;
         }
+        return value;
     }
 
     private boolean truthy(Object object) {
@@ -177,7 +531,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private Object evaluate(Expr expr) {
-        return expr.accept(this);
+        return expr.evaluate(this);
     }
 
     private boolean isEqual(Object a, Object b) {
@@ -191,18 +545,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) {
+    private void checkNumberOperand(int position, Object operand) {
+        if (Numbers.isNumber(operand)) {
             return;
         }
-        throw new RuntimeError(operator, "Operand must be a number.");
+        throw new RuntimeError(position, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) {
+    private void checkNumberOperands(int position, Object left, Object right) {
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
             return;
         }
-        throw new RuntimeError(operator, "Operands must be a number.");
+        throw new RuntimeError(position, "Operands must be a number.");
     }
 
     void interpret(List<Stmt> statements) {
@@ -216,7 +570,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private void execute(Stmt statement) {
-        statement.accept(this);
+        statement.execute(this);
     }
 
     private String stringify(Object object) {
@@ -224,12 +578,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             return "nil";
         }
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+        if (Numbers.isNumber(object)) {
+            return Numbers.toString(object);
         }
 
         return object.toString();
@@ -257,7 +607,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (stmt.initializer != null) {
             value = this.evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
+        environment.define(stmt.name, value);
         return null;
     }
 
@@ -275,7 +625,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left = this.evaluate(expr.left);
 
-        if (expr.operator.type == TokenType.OR) {
+        if (expr.operator == TokenType.OR) {
             if (this.truthy(left)) {
                 return left;
             }
@@ -287,6 +637,43 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return this.evaluate(expr.right);
     }
 
+    /*
+     * Counts in a double instead of the loop variable, which is only written back to the loop's
+     * environment when the body reads it.
+     */
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        Environment previous = this.environment;
+        Environment frame = this.pushFrame(previous);
+        try {
+            this.environment = frame;
+            Object start = this.evaluate(stmt.variable.initializer);
+            frame.define(stmt.variable.name, start);
+
+            Object bound = this.evaluate(stmt.condition.right);
+            this.checkNumberOperands(stmt.condition.position, start, bound);
+            double i = Numbers.toDouble(start);
+            boolean inclusive = stmt.condition.operator == TokenType.LESS_EQUAL;
+            while (inclusive ? i <= Numbers.toDouble(bound) : i < Numbers.toDouble(bound)) {
+                this.execute(stmt.body);
+                i += stmt.step;
+                if (stmt.read) {
+                    frame.assignAt(0, stmt.variable.name, Numbers.of(i));
+                }
+                bound = this.evaluate(stmt.condition.right);
+                if (!Numbers.isNumber(bound)) {
+                    this.checkNumberOperands(stmt.condition.position, i, bound);
+                }
+            }
+        } catch (BreakException e) {
+            // Just gonna break out of the loop.
+        } finally {
+            this.environment = previous;
+            this.popFrame();
+        }
+        return null;
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         try {
@@ -312,24 +699,95 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             arguments.add(this.evaluate(argument));
         }
 
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+        // A call site nearly always calls the same function, usually a constant global, so the
+        // checks are skipped when it is the one that passed them last time.
+        if (callee != expr.checkedCallee) {
+            if (!(callee instanceof LoxCallable)) {
+                throw new RuntimeError(expr.position, "Can only call functions and classes.");
+            }
+            LoxCallable function = (LoxCallable) callee;
+            if (function.arity() != arguments.size()) {
+                throw new RuntimeError(expr.position, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+            }
+            expr.checkedCallee = callee;
+            this.record(function);
         }
-        LoxCallable function = (LoxCallable) callee;
-        if (function.arity() != arguments.size()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+
+        try {
+            return this.invoke((LoxCallable) callee, arguments);
+        } catch (RuntimeError error) {
+            if (error.position == RuntimeError.AT_CALL) {
+                throw new RuntimeError(expr.position, error.getMessage());
+            }
+            throw error;
         }
+    }
 
-        return function.call(this, arguments);
+    /*
+     * Calls a function a native was given, like the callback of forEach, the way a call in Lox
+     * would be, with the same depth limit and profiling. Errors are reported at the call of the
+     * native.
+     */
+    Object callBack(LoxCallable function, List<Object> arguments) {
+        this.record(function);
+        return this.invoke(function, arguments);
+    }
+
+    private void record(LoxCallable function) {
+        if (this.profile == null) {
+            return;
+        }
+        if (function instanceof LoxClass) {
+            function = ((LoxClass) function).findMethod("init");
+        }
+        if (function instanceof LoxFunction) {
+            this.profile.called((LoxFunction) function);
+        }
+    }
+
+    /*
+     * Calls a function that has passed its checks, counting it against the depth limit.
+     */
+    private Object invoke(LoxCallable function, List<Object> arguments) {
+        if (this.depth == this.maxDepth) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Stack overflow.");
+        }
+        this.depth++;
+        try {
+            return function.call(this, arguments);
+        } catch (StackOverflowError error) {
+            // Deeply nested expressions can still run out of Java stack below the limit.
+            throw new RuntimeError(RuntimeError.AT_CALL, "Stack overflow.");
+        } finally {
+            this.depth--;
+        }
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        if (stmt.upvalues.length == 0) {
+            this.environment.define(stmt.name, new LoxFunction(stmt, new Environment(), false));
+            return null;
+        }
+
+        // A recursive function captures its own variable, so it has to exist first.
+        this.environment.define(stmt.name, null);
+        LoxFunction function = new LoxFunction(stmt, this.capture(stmt.upvalues, stmt.upvalueDepths), false);
+        this.environment.assignAt(0, stmt.name, function);
         return null;
     }
 
+    /*
+     * Creates the environment a closure keeps, holding only the variables it captures.
+     */
+    private Environment capture(String[] upvalues, int[] depths) {
+        Environment closure = new Environment();
+        for (int i = 0; i < upvalues.length; i++) {
+            closure.define(upvalues[i], this.environment.upvalueAt(depths[i], upvalues[i]));
+        }
+        return closure;
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
@@ -346,30 +804,37 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (stmt.superclass != null) {
             superclass = this.evaluate(stmt.superclass);
             if (!(superclass instanceof LoxClass)) {
-                throw new RuntimeError(stmt.superclass.name, "Superclass must be a class");
+                throw new RuntimeError(stmt.superclass.position, "Superclass must be a class");
             }
         }
 
-        this.environment.define(stmt.name.lexeme, null);
+        // Methods that refer to their own class capture its variable, so it has to exist first.
+        boolean captures = stmt.upvalues.length > 0;
+        if (captures) {
+            this.environment.define(stmt.name, null);
+        }
 
+        Environment closure = this.capture(stmt.upvalues, stmt.upvalueDepths);
         if (stmt.superclass != null) {
-            this.environment = new Environment(this.environment);
-            environment.define("super", superclass);
+            closure = new Environment(closure);
+            closure.define("super", superclass);
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, closure, method.name.equals("init"));
+            methods.put(method.name, function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+        LoxClass klass = new LoxClass(stmt.name, (LoxClass) superclass, methods);
 
-        if (superclass != null) {
-            this.environment = environment.enclosing;
+        // Otherwise nothing can read the class's variable while its methods are being created, so
+        // it is only defined once they are, which lets a global class be treated as a constant.
+        if (captures) {
+            this.environment.assignAt(0, stmt.name, klass);
+        } else {
+            this.environment.define(stmt.name, klass);
         }
-
-        this.environment.assign(stmt.name, klass);
         return null;
     }
 
@@ -377,9 +842,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitGetExpr(Expr.Get expr) {
         Object object = this.evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return ((LoxInstance) object).get(expr.name, expr.position);
+        }
+        throw new RuntimeError(expr.position, "Only instances have properties.");
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        Object target = this.evaluate(expr.object);
+        // Maps are indexed by any value, and a missing key is nil.
+        if (target instanceof LoxMap) {
+            return ((LoxMap) target).get(this.evaluate(expr.index));
+        }
+        Indexable object = this.indexable(expr.position, target);
+        int index = Indexable.index(object, expr.position, this.evaluate(expr.index));
+        return object.get(index);
+    }
+
+    @Override
+    public Object visitSetIndexExpr(Expr.SetIndex expr) {
+        Object target = this.evaluate(expr.object);
+        if (target instanceof LoxMap) {
+            Object key = this.evaluate(expr.index);
+            Object value = this.evaluate(expr.value);
+            ((LoxMap) target).put(key, value);
+            return value;
+        }
+        Indexable object = this.indexable(expr.position, target);
+        int index = Indexable.index(object, expr.position, this.evaluate(expr.index));
+        Object value = this.evaluate(expr.value);
+        object.set(index, expr.position, value);
+        return value;
+    }
+
+    private Indexable indexable(int position, Object object) {
+        if (object instanceof Indexable) {
+            return (Indexable) object;
         }
-        throw new RuntimeError(expr.name, "Only instances have properties.");
+        throw new RuntimeError(position, "Only arrays can be indexed.");
     }
 
     @Override
@@ -387,28 +887,28 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object object = this.evaluate(expr.object);
 
         if (!(object instanceof LoxInstance)) {
-            throw new RuntimeError(expr.name, "Only instances have fields.");
+            throw new RuntimeError(expr.position, "Only instances have fields.");
         }
 
         Object value = this.evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        ((LoxInstance) object).set(expr.name, expr.position, value);
         return value;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return this.lookUpVariable(expr.keyword, expr);
+        return this.environment.getAt(this.depthOf(expr), "this");
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = this.locals.get(expr);
+        int distance = this.depthOf(expr);
         LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxInstance object = (LoxInstance) environment.getAt(expr.thisDepth, "this");
+        LoxFunction method = superclass.findMethod(expr.method);
 
         if (method == null) {
-            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+            throw new RuntimeError(expr.methodPosition, "Undefined property '" + expr.method + "'.");
         }
         return method.bind(object);
     }
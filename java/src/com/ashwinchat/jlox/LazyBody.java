@@ -0,0 +1,108 @@
+package com.ashwinchat.jlox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The body of a function that was parsed with the rest of the program, so its syntax errors are
+ * reported with the program's, but not resolved. The statements are resolved against the scopes
+ * the function was declared in the first time anything looks at them, which is normally the
+ * function's first call. Errors the resolver finds in the body, like reading a local in its own
+ * initializer, are only reported then, and fail the call instead of stopping the program from
+ * running.
+ */
+class LazyBody extends AbstractList<Stmt> {
+    private final String name;
+    private final int position;
+    private final List<Stmt> statements;
+
+    // Every name the body could refer to a variable by, until it has been resolved.
+    private List<String> names;
+
+    // The resolver to resolve the body with, until it has been tried.
+    private Resolver resolver;
+    private boolean failed = false;
+
+    LazyBody(String name, int position, List<Stmt> statements, List<String> names) {
+        this.name = name;
+        this.position = position;
+        this.statements = statements;
+        this.names = names;
+    }
+
+    /*
+     * Returns every name a body's tokens could refer to a variable by.
+     */
+    static List<String> names(List<Token> tokens) {
+        List<String> names = new ArrayList<>();
+        TokenType previous = null;
+        for (Token token : tokens) {
+            if (token.type == TokenType.IDENTIFIER && previous != TokenType.DOT) {
+                names.add(token.lexeme);
+            } else if (token.type == TokenType.THIS) {
+                names.add("this");
+            } else if (token.type == TokenType.SUPER) {
+                names.add("super");
+                names.add("this");
+            }
+            previous = token.type;
+        }
+        return names;
+    }
+
+    /*
+     * Returns the statements of a function body, resolving it first if it is a lazy one.
+     */
+    static List<Stmt> statements(List<Stmt> body) {
+        return body instanceof LazyBody ? ((LazyBody) body).statements() : body;
+    }
+
+    List<String> names() {
+        // A body that failed to resolve can never run.
+        return this.names == null ? new ArrayList<>() : this.names;
+    }
+
+    boolean isResolved() {
+        return this.names == null && !this.failed;
+    }
+
+    /*
+     * Takes a copy of the resolver as it stands at the start of the function body.
+     */
+    void resolveLater(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /*
+     * Resolves the body the first time it is asked to, returning whether it resolved. A body that
+     * fails is only reported once, and every call fails after that without trying it again.
+     */
+    boolean resolve() {
+        if (this.names != null) {
+            Resolver resolver = this.resolver;
+            this.resolver = null;
+            this.names = null;
+            // Only this body's own errors count; the program may have had others before it ran.
+            this.failed = !resolver.resolveBody(this, this.statements);
+        }
+        return !this.failed;
+    }
+
+    private List<Stmt> statements() {
+        if (!this.resolve()) {
+            throw new RuntimeError(this.position, "Could not compile the body of '" + this.name + "'.");
+        }
+        return this.statements;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return this.statements().get(index);
+    }
+
+    @Override
+    public int size() {
+        return this.statements().size();
+    }
+}
@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
@@ -14,17 +16,113 @@ public class Lox {
     static boolean hadRuntimeError = false;
     static boolean replMode = false;
 
-    public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+    // Resolve scopes while parsing instead of in a separate Resolver pass.
+    static boolean singlePass = false;
+
+    // Parse and resolve function bodies when they are first called.
+    static boolean lazyBodies = false;
+
+    // Report how many operand checks type inference removed from each program.
+    static boolean typeReport = false;
+
+    // Where resolved programs are cached between runs, if anywhere.
+    private static ProgramCache programCache = null;
+
+    // Where the script's profile is kept between runs, if anywhere.
+    private static Path profilePath = null;
+
+    // Java stack reserved for each level of Lox calls. A call takes several visitor frames, and
+    // more when its expressions nest deeply.
+    private static final long STACK_PER_CALL = 4096;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String prelude = null;
+        String snapshot = null;
+        int maxDepth = Interpreter.DEFAULT_MAX_DEPTH;
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--single-pass")) {
+                singlePass = true;
+            } else if (arg.equals("--lazy")) {
+                lazyBodies = true;
+            } else if (arg.equals("--type-report")) {
+                typeReport = true;
+            } else if (arg.startsWith("--cache-dir=")) {
+                programCache = new ProgramCache(Paths.get(arg.substring("--cache-dir=".length())));
+            } else if (arg.startsWith("--profile=")) {
+                profilePath = Paths.get(arg.substring("--profile=".length()));
+            } else if (arg.startsWith("--prelude=")) {
+                prelude = arg.substring("--prelude=".length());
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshot = arg.substring("--snapshot=".length());
+            } else if (arg.startsWith("--max-depth=")) {
+                try {
+                    maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+                } catch (NumberFormatException error) {
+                    usage();
+                }
+                if (maxDepth <= 0) {
+                    usage();
+                }
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                scripts.add(arg);
+            }
+        }
+
+        if ((scripts.size() > 1 && profilePath != null) || (snapshot != null && prelude == null)) {
+            usage();
+        }
+
+        // Lox calls recurse on the Java stack, so the interpreter runs on a thread whose stack is
+        // sized for the call depth it allows instead of the main thread's.
+        interpreter.maxDepth = maxDepth;
+        String preludePath = prelude;
+        String snapshotPath = snapshot;
+        // Anything the thread throws is rethrown here, so it still ends the process with an error.
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                start(preludePath, snapshotPath, scripts);
+            } catch (Throwable error) {
+                failure[0] = error;
+            }
+        }, "jlox", maxDepth * STACK_PER_CALL);
+        thread.start();
+        thread.join();
+        rethrow(failure[0]);
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    private static void start(String prelude, String snapshot, List<String> scripts) throws IOException, InterruptedException {
+        if (prelude != null) {
+            runPrelude(Paths.get(prelude), snapshot == null ? null : Paths.get(snapshot));
+        }
+
+        if (scripts.size() == 1) {
+            runFile(scripts.get(0));
+        } else if (scripts.size() > 1) {
+            runForked(scripts);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: jlox [--single-pass] [--lazy] [--type-report] [--cache-dir=<dir>] [--profile=<file>] [--prelude=<file> [--snapshot=<file>]] [--max-depth=<n>] [script...]");
+        System.exit(64);
+    }
+
     private static void runPrompt() throws IOException {
         replMode = true;
         InputStreamReader input = new InputStreamReader(System.in);
@@ -43,7 +141,16 @@ public class Lox {
 
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        String source = new String(bytes, Charset.defaultCharset());
+        if (profilePath != null) {
+            interpreter.profile = Profile.load(profilePath, source);
+        }
+
+        run(source);
+
+        if (profilePath != null) {
+            interpreter.profile.save();
+        }
 
         // Indicate error in exit code
         if (hadError) {
@@ -55,24 +162,171 @@ public class Lox {
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+    /*
+     * Runs several scripts at the same time, each on its own thread in its own fork of the
+     * interpreter the prelude ran in, so that none of them sees what the others do to the
+     * globals. What they print is interleaved a line at a time.
+     */
+    private static void runForked(List<String> scripts) throws IOException, InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        Throwable[] failures = new Throwable[scripts.size()];
+        for (int i = 0; i < scripts.size(); i++) {
+            int index = i;
+            String source = new String(Files.readAllBytes(Paths.get(scripts.get(i))), Charset.defaultCharset());
+            Interpreter fork = interpreter.fork();
+            threads.add(new Thread(null, () -> {
+                try {
+                    run(fork, source);
+                } catch (Throwable error) {
+                    failures[index] = error;
+                }
+            }, "jlox-" + i, interpreter.maxDepth * STACK_PER_CALL));
+        }
 
+        // The first fork parses every function body the prelude left for later.
         if (hadError) {
-            return;
+            System.exit(65);
         }
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            rethrow(failure);
+        }
 
         if (hadError) {
+            System.exit(65);
+        }
+        if (hadRuntimeError) {
+            System.exit(70);
+        }
+    }
+
+    /*
+     * Runs a file of definitions before the script or prompt. With a snapshot file, the globals it
+     * leaves behind are restored from the snapshot when it matches the prelude, and saved to it
+     * when it doesn't.
+     */
+    private static void runPrelude(Path path, Path snapshot) throws IOException {
+        String source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        if (snapshot != null && Snapshot.restore(snapshot, source, interpreter)) {
             return;
         }
 
+        Scanner scanner = new Scanner(source);
+        // Snapshots refer to every function body, so they all have to be parsed.
+        List<Stmt> statements = compile(interpreter, scanner, scanner.scanTokens(), lazyBodies && snapshot == null);
+        if (statements != null) {
+            infer(statements);
+            interpreter.interpret(statements);
+        }
+        if (hadError || hadRuntimeError) {
+            System.exit(hadError ? 65 : 70);
+        }
+
+        if (snapshot != null) {
+            Snapshot.write(snapshot, source, scanner.base(), statements, interpreter);
+        }
+    }
+
+    private static void run(String source) {
+        run(interpreter, source);
+    }
+
+    /*
+     * Runs a source in the given interpreter, which can be a fork of one a prelude was run in.
+     */
+    static void run(Interpreter interpreter, String source) {
+        boolean cached = programCache != null && !replMode;
+        List<Stmt> statements = null;
+        if (cached) {
+            statements = programCache.load(source, interpreter);
+        }
+
+        // The base of a source that nothing refers to once it has run.
+        int release = -1;
+        if (statements == null) {
+            Scanner scanner = new Scanner(source);
+            List<Token> tokens = scanner.scanTokens();
+            // Every body has to be parsed to be cached, so there is no point in deferring them.
+            statements = compile(interpreter, scanner, tokens, lazyBodies && !cached);
+            if (statements == null) {
+                SourceMap.release(scanner.base());
+                return;
+            }
+            if (cached) {
+                programCache.store(source, scanner.base(), statements, interpreter);
+            } else if (interpreter.profile == null && !definesAnything(tokens)) {
+                release = scanner.base();
+            }
+        }
+
+        if (interpreter.profile != null) {
+            interpreter.profile.prepare(statements);
+        }
+        infer(statements);
         interpreter.interpret(statements);
+        if (release >= 0) {
+            SourceMap.release(release);
+        }
+    }
+
+    /*
+     * Functions and classes outlive the program that defines them, and can report errors at
+     * positions in its source for as long as they do.
+     */
+    private static boolean definesAnything(List<Token> tokens) {
+        for (Token token : tokens) {
+            if (token.type == TokenType.FUN || token.type == TokenType.CLASS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Marks the operators whose operands are known to be numbers. Cached programs are inferred
+     * again when they are loaded, since the marks aren't stored.
+     */
+    private static void infer(List<Stmt> statements) {
+        TypeInference inference = new TypeInference();
+        inference.infer(statements);
+        if (typeReport) {
+            System.err.println("[types] Elided " + inference.elided() + " of " + inference.checks() + " operand checks.");
+        }
+    }
+
+    /*
+     * Parses and resolves a program, returning null if there were any static errors. Only the
+     * program's own errors count, as other programs can be compiled on other threads.
+     */
+    private static List<Stmt> compile(Interpreter interpreter, Scanner scanner, List<Token> tokens, boolean lazy) {
+        Resolver resolver = new Resolver(interpreter);
+
+        if (singlePass) {
+            Parser parser = new Parser(tokens, resolver, lazy);
+            List<Stmt> statements = parser.parse();
+            return scanner.hadError() || parser.hadError() || resolver.hadError() ? null : statements;
+        }
+
+        Parser parser = new Parser(tokens, null, lazy);
+        List<Stmt> statements = parser.parse();
+
+        if (scanner.hadError() || parser.hadError()) {
+            return null;
+        }
+
+        resolver.resolve(statements);
+
+        if (resolver.hadError()) {
+            return null;
+        }
+
+        return statements;
     }
 
     static void error(int line, String message) {
@@ -84,6 +338,10 @@ public class Lox {
         hadError = true;
     }
 
+    static void errorAt(int position, String message) {
+        report(SourceMap.line(position), " at '" + SourceMap.lexeme(position) + "'", message);
+    }
+
     static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
@@ -93,7 +351,7 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        System.err.println(error.getMessage() + "\n[line " + error.line() + "]");
         hadRuntimeError = true;
     }
 }
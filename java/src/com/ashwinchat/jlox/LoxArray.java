@@ -2,24 +2,64 @@ package com.ashwinchat.jlox;
 
 import java.util.List;
 
-public class LoxArray extends LoxInstance {
+public class LoxArray extends LoxInstance implements Indexable {
     private final Object[] elements;
 
+    // The get and set methods, made the first time they are looked up.
+    private LoxCallable getter;
+    private LoxCallable setter;
+
     public LoxArray(int size) {
         super(null);
         this.elements = new Object[size];
     }
 
+    Object[] elements() {
+        return this.elements;
+    }
+
+    @Override
+    public int length() {
+        return this.elements.length;
+    }
+
+    @Override
+    public Object get(int index) {
+        return this.elements[index];
+    }
+
     @Override
-    Object get(Token name) {
+    public void set(int index, int position, Object value) {
+        this.elements[index] = value;
+    }
+
+    /*
+     * Checks an index passed to get or set, which truncate it like they always have.
+     */
+    private int index(Object index) {
+        if (!Numbers.isNumber(index)) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Index must be a number.");
+        }
+        double value = Numbers.toDouble(index);
+        if (!(value > -1) || value >= this.elements.length) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Index out of bounds.");
+        }
+        return Numbers.toInt(index);
+    }
+
+    @Override
+    Object get(String name, int position) {
         /**
          * Theres three methods we add to this array.
          * 1. array.set(position, value).
          * 2. array.get(position) returns the value.
          * 3. array.length returns the length of the array.
          */
-        if (name.lexeme.equals("get")) {
-            return new LoxCallable() {
+        if (name.equals("get")) {
+            if (this.getter != null) {
+                return this.getter;
+            }
+            return this.getter = new LoxCallable() {
                 @Override
                 public int arity() {
                     return 1;
@@ -27,12 +67,15 @@ public class LoxArray extends LoxInstance {
 
                 @Override
                 public Object call(Interpreter interpreter, List<Object> arguments) {
-                    int index = (int)(double)arguments.get(0);
+                    int index = LoxArray.this.index(arguments.get(0));
                     return elements[index];
                 }
             };
-        } else if (name.lexeme.equals("set")) {
-            return new LoxCallable() {
+        } else if (name.equals("set")) {
+            if (this.setter != null) {
+                return this.setter;
+            }
+            return this.setter = new LoxCallable() {
                 @Override
                 public int arity() {
                     return 2;
@@ -40,21 +83,21 @@ public class LoxArray extends LoxInstance {
 
                 @Override
                 public Object call(Interpreter interpreter, List<Object> arguments) {
-                    int index = (int)(double)arguments.get(0);
+                    int index = LoxArray.this.index(arguments.get(0));
                     Object value = arguments.get(1);
                     return elements[index] = value;
                 }
             };
-        } else if (name.lexeme.equals("length")) {
-            return (double) elements.length;
+        } else if (name.equals("length")) {
+            return (long) elements.length;
         }
 
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        throw new RuntimeError(position, "Undefined property '" + name + "'.");
     }
 
     @Override
-    void set(Token name, Object value) {
-        throw new RuntimeError(name, "Can't add properties to arrays.");
+    void set(String name, int position, Object value) {
+        throw new RuntimeError(position, "Can't add properties to arrays.");
     }
 
     @Override
@@ -65,7 +108,9 @@ public class LoxArray extends LoxInstance {
             if (i != 0) {
                 builder.append(", ");
             }
-            builder.append(this.elements[i]);
+            // Numbers are listed as doubles, the way they always have been.
+            Object element = this.elements[i];
+            builder.append(Numbers.isNumber(element) ? Numbers.toDouble(element) : element);
         }
         builder.append("]");
         return builder.toString();
@@ -33,6 +33,10 @@ public class LoxClass implements LoxCallable {
         return instance;
     }
 
+    Map<String, LoxFunction> methods() {
+        return this.methods;
+    }
+
     LoxFunction findMethod(String name) {
         if (this.methods.containsKey(name)) {
             return methods.get(name);
@@ -7,31 +7,46 @@ public class LoxFunction implements LoxCallable {
     private final Environment closure;
     private final boolean isInitializer;
 
+    // The statements of the body, kept once a lazy body has been resolved so that running them
+    // doesn't go through it.
+    private List<Stmt> body;
+
     LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, List<Stmt> body) {
         this.isInitializer = isInitializer;
         this.declaration = declaration;
         this.closure = closure;
+        this.body = body;
     }
 
     @Override
     public int arity() {
-        return this.declaration.params.size();
+        return this.declaration.params.length;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < this.declaration.params.size(); i++) {
-            environment.define(this.declaration.params.get(i).lexeme, arguments.get(i));
+        List<Stmt> body = this.body;
+        if (body == null) {
+            body = this.body = LazyBody.statements(this.declaration.body);
         }
 
+        Environment environment = interpreter.pushFrame(this.closure);
         try {
-            interpreter.executeBlock(this.declaration.body, environment);
+            for (int i = 0; i < this.declaration.params.length; i++) {
+                environment.define(this.declaration.params[i], arguments.get(i));
+            }
+            interpreter.executeBlock(body, environment);
         } catch (Return returnValue) {
             if (this.isInitializer) {
                 return closure.getAt(0, "this");
             }
             return returnValue.value;
+        } finally {
+            interpreter.popFrame();
         }
 
         if (this.isInitializer) {
@@ -41,14 +56,26 @@ public class LoxFunction implements LoxCallable {
         return null;
     }
 
+    Stmt.Function declaration() {
+        return this.declaration;
+    }
+
+    Environment closure() {
+        return this.closure;
+    }
+
+    boolean isInitializer() {
+        return this.isInitializer;
+    }
+
     LoxFunction bind(LoxInstance instance) {
         Environment environment = new Environment(this.closure);
         environment.define("this", instance);
-        return new LoxFunction(this.declaration, environment, this.isInitializer);
+        return new LoxFunction(this.declaration, environment, this.isInitializer, this.body);
     }
 
     @Override
     public String toString() {
-        return "<fn " + this.declaration.name.lexeme + ">";
+        return "<fn " + this.declaration.name + ">";
     }
 }
@@ -11,20 +11,28 @@ public class LoxInstance {
         this.klass = klass;
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    LoxClass klass() {
+        return this.klass;
+    }
+
+    Map<String, Object> fields() {
+        return this.fields;
+    }
+
+    Object get(String name, int position) {
+        if (fields.containsKey(name)) {
+            return fields.get(name);
         }
 
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxFunction method = klass.findMethod(name);
         if (method != null) {
             return method.bind(this);
         }
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        throw new RuntimeError(position, "Undefined property '" + name + "'.");
     }
 
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    void set(String name, int position, Object value) {
+        fields.put(name, value);
     }
 
     @Override
@@ -0,0 +1,265 @@
+package com.ashwinchat.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A growable list, made by List(). Elements are read and written with index syntax, and the
+ * length property is the number of elements.
+ *
+ * slice(start, end) returns a view of part of a list that reads and writes through to it. A slice
+ * can't change size itself, and only sees the part of its window the list still has.
+ */
+public class LoxList extends LoxInstance implements Indexable {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private enum Method {
+        PUSH("push", 1),
+        POP("pop", 0),
+        INSERT("insert", 2),
+        REMOVE("remove", 1),
+        SLICE("slice", 2),
+        FOR_EACH("forEach", 1);
+
+        final String name;
+        final int arity;
+
+        // Looked up by name on every property access, so values() isn't copied and scanned.
+        static final Map<String, Method> BY_NAME = new HashMap<>();
+
+        static {
+            for (Method method : values()) {
+                BY_NAME.put(method.name, method);
+            }
+        }
+
+        Method(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+    }
+
+    // Only set on lists that aren't slices.
+    private Object[] elements;
+    private int size;
+
+    // Only set on slices, whose list is never a slice itself.
+    private final LoxList list;
+    private final int offset;
+    private final int length;
+
+    // Methods, made the first time they are looked up.
+    private LoxCallable[] methods;
+
+    public LoxList() {
+        super(null);
+        this.elements = new Object[INITIAL_CAPACITY];
+        this.list = null;
+        this.offset = 0;
+        this.length = 0;
+    }
+
+    LoxList(LoxList list, int offset, int length) {
+        super(null);
+        this.list = list;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    LoxList list() {
+        return this.list;
+    }
+
+    int offset() {
+        return this.offset;
+    }
+
+    // The length of a slice's window, whether or not the list still has all of it.
+    int window() {
+        return this.length;
+    }
+
+    @Override
+    public int length() {
+        if (this.list == null) {
+            return this.size;
+        }
+        return Math.max(0, Math.min(this.length, this.list.size - this.offset));
+    }
+
+    @Override
+    public Object get(int index) {
+        if (this.list == null) {
+            return this.elements[index];
+        }
+        return this.list.elements[this.offset + index];
+    }
+
+    @Override
+    public void set(int index, int position, Object value) {
+        if (this.list == null) {
+            this.elements[index] = value;
+        } else {
+            this.list.elements[this.offset + index] = value;
+        }
+    }
+
+    void push(Object value) {
+        if (this.size == this.elements.length) {
+            this.elements = Arrays.copyOf(this.elements, this.size * 2);
+        }
+        this.elements[this.size++] = value;
+    }
+
+    @Override
+    Object get(String name, int position) {
+        if (name.equals("length")) {
+            return (long) this.length();
+        }
+        Method method = Method.BY_NAME.get(name);
+        if (method != null) {
+            return this.method(method);
+        }
+        throw new RuntimeError(position, "Undefined property '" + name + "'.");
+    }
+
+    @Override
+    void set(String name, int position, Object value) {
+        throw new RuntimeError(position, "Can't add properties to lists.");
+    }
+
+    private LoxCallable method(Method method) {
+        if (this.methods == null) {
+            this.methods = new LoxCallable[Method.BY_NAME.size()];
+        }
+        if (this.methods[method.ordinal()] == null) {
+            this.methods[method.ordinal()] = new LoxCallable() {
+                @Override
+                public int arity() {
+                    return method.arity;
+                }
+
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    return LoxList.this.call(method, interpreter, arguments);
+                }
+
+                @Override
+                public String toString() {
+                    return "<native fn>";
+                }
+            };
+        }
+        return this.methods[method.ordinal()];
+    }
+
+    private Object call(Method method, Interpreter interpreter, List<Object> arguments) {
+        switch (method) {
+            case PUSH:
+                this.resizable();
+                this.push(arguments.get(0));
+                return null;
+            case POP: {
+                this.resizable();
+                if (this.size == 0) {
+                    throw new RuntimeError(RuntimeError.AT_CALL, "Can't pop from an empty list.");
+                }
+                Object value = this.elements[--this.size];
+                this.elements[this.size] = null;
+                return value;
+            }
+            case INSERT: {
+                this.resizable();
+                int index = index(arguments.get(0), this.size + 1);
+                if (this.size == this.elements.length) {
+                    this.elements = Arrays.copyOf(this.elements, this.size * 2);
+                }
+                System.arraycopy(this.elements, index, this.elements, index + 1, this.size - index);
+                this.elements[index] = arguments.get(1);
+                this.size++;
+                return null;
+            }
+            case REMOVE: {
+                this.resizable();
+                int index = index(arguments.get(0), this.size);
+                Object value = this.elements[index];
+                System.arraycopy(this.elements, index + 1, this.elements, index, this.size - index - 1);
+                this.elements[--this.size] = null;
+                return value;
+            }
+            case SLICE: {
+                int end = index(arguments.get(1), this.length() + 1);
+                int start = index(arguments.get(0), end + 1);
+                LoxList list = this.list == null ? this : this.list;
+                return new LoxList(list, this.offset + start, end - start);
+            }
+            case FOR_EACH:
+                this.forEach(interpreter, arguments.get(0));
+                return null;
+        }
+
+        // unreachable code
+        return null;
+    }
+
+    /*
+     * Calls a function with each element in turn, going straight to the elements instead of
+     * through a loop of index expressions. The function may change the list as it goes.
+     */
+    private void forEach(Interpreter interpreter, Object callee) {
+        if (!(callee instanceof LoxCallable) || ((LoxCallable) callee).arity() != 1) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Expected a function of one argument.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        List<Object> arguments = new ArrayList<>(1);
+        arguments.add(null);
+        for (int i = 0; i < this.length(); i++) {
+            arguments.set(0, this.get(i));
+            interpreter.callBack(function, arguments);
+        }
+    }
+
+    private void resizable() {
+        if (this.list != null) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Can't change the size of a slice.");
+        }
+    }
+
+    /*
+     * Checks an index argument, which has to be an integer below the limit.
+     */
+    private static int index(Object index, int limit) {
+        if (!(index instanceof Long)) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Index must be an integer.");
+        }
+        long value = (long) index;
+        if (value < 0 || value >= limit) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Index out of bounds.");
+        }
+        return (int) value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        for (int i = 0; i < this.length(); ++i) {
+            if (i != 0) {
+                builder.append(", ");
+            }
+            Object element = this.get(i);
+            if (element == null) {
+                builder.append("nil");
+            } else if (Numbers.isNumber(element)) {
+                builder.append(Numbers.toString(element));
+            } else {
+                builder.append(element);
+            }
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,309 @@
+package com.ashwinchat.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A hash map from any Lox values to any others, made by Map(). Entries are read with 'm[key]',
+ * which is nil for a missing key, and written with 'm[key] = value'. Keys are equal when == says
+ * they are, so numbers, strings, booleans and nil are compared by value and everything else by
+ * identity.
+ *
+ * Keys and values sit side by side in one array with linear probing, so an entry costs two
+ * references and nothing else. Removing an entry shifts the entries after it back instead of
+ * leaving a tombstone.
+ */
+public class LoxMap extends LoxInstance {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Stands in for a nil key, since an empty slot holds null.
+    private static final Object NIL = new Object();
+
+    private enum Method {
+        HAS("has", 1),
+        REMOVE("remove", 1),
+        KEYS("keys", 0),
+        VALUES("values", 0),
+        FOR_EACH("forEach", 1),
+        CLEAR("clear", 0);
+
+        final String name;
+        final int arity;
+
+        // Looked up by name on every property access, so values() isn't copied and scanned.
+        static final Map<String, Method> BY_NAME = new HashMap<>();
+
+        static {
+            for (Method method : values()) {
+                BY_NAME.put(method.name, method);
+            }
+        }
+
+        Method(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+    }
+
+    // The key of each slot is at twice its index and the value just after.
+    private Object[] entries = new Object[INITIAL_CAPACITY * 2];
+    private int size = 0;
+    private int shift = 32 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+
+    // Counts changes, so forEach can tell when its function changed the map.
+    private int modifications = 0;
+
+    // Methods, made the first time they are looked up.
+    private LoxCallable[] methods;
+
+    public LoxMap() {
+        super(null);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    Object get(Object key) {
+        int slot = this.find(key == null ? NIL : key);
+        return slot < 0 ? null : this.entries[slot * 2 + 1];
+    }
+
+    void put(Object key, Object value) {
+        if (key == null) {
+            key = NIL;
+        }
+        int slot = this.find(key);
+        if (slot >= 0) {
+            this.entries[slot * 2 + 1] = value;
+            return;
+        }
+
+        // Grow at three quarters full.
+        if ((this.size + 1) * 4 > this.capacity() * 3) {
+            this.resize(this.capacity() * 2);
+        }
+        this.insert(key, value);
+        this.size++;
+        this.modifications++;
+    }
+
+    Object remove(Object key) {
+        int slot = this.find(key == null ? NIL : key);
+        if (slot < 0) {
+            return null;
+        }
+        Object value = this.entries[slot * 2 + 1];
+        this.delete(slot);
+        this.size--;
+        this.modifications++;
+        return value;
+    }
+
+    /*
+     * Returns the keys and values of every entry, alternating.
+     */
+    List<Object> entries() {
+        List<Object> entries = new ArrayList<>(this.size * 2);
+        for (int slot = 0; slot < this.capacity(); slot++) {
+            Object key = this.entries[slot * 2];
+            if (key != null) {
+                entries.add(key == NIL ? null : key);
+                entries.add(this.entries[slot * 2 + 1]);
+            }
+        }
+        return entries;
+    }
+
+    private int capacity() {
+        return this.entries.length / 2;
+    }
+
+    /*
+     * Spreads the hash over the slot bits by Fibonacci hashing.
+     */
+    private int home(Object key) {
+        return (key.hashCode() * 0x9E3779B9) >>> this.shift;
+    }
+
+    private int find(Object key) {
+        int mask = this.capacity() - 1;
+        for (int slot = this.home(key); ; slot = (slot + 1) & mask) {
+            Object candidate = this.entries[slot * 2];
+            if (candidate == null) {
+                return -1;
+            }
+            if (candidate == key || candidate.equals(key)) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(Object key, Object value) {
+        int mask = this.capacity() - 1;
+        int slot = this.home(key);
+        while (this.entries[slot * 2] != null) {
+            slot = (slot + 1) & mask;
+        }
+        this.entries[slot * 2] = key;
+        this.entries[slot * 2 + 1] = value;
+    }
+
+    /*
+     * Empties a slot, moving back any later entry in its run that would no longer be found.
+     */
+    private void delete(int slot) {
+        int mask = this.capacity() - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; this.entries[next * 2] != null; next = (next + 1) & mask) {
+            int home = this.home(this.entries[next * 2]);
+            // The entry can move into the hole unless its home lies cyclically after the hole.
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!stays) {
+                this.entries[hole * 2] = this.entries[next * 2];
+                this.entries[hole * 2 + 1] = this.entries[next * 2 + 1];
+                hole = next;
+            }
+        }
+        this.entries[hole * 2] = null;
+        this.entries[hole * 2 + 1] = null;
+    }
+
+    private void resize(int capacity) {
+        Object[] entries = this.entries;
+        this.entries = new Object[capacity * 2];
+        this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        for (int slot = 0; slot < entries.length; slot += 2) {
+            if (entries[slot] != null) {
+                this.insert(entries[slot], entries[slot + 1]);
+            }
+        }
+    }
+
+    @Override
+    Object get(String name, int position) {
+        if (name.equals("length")) {
+            return (long) this.size;
+        }
+        Method method = Method.BY_NAME.get(name);
+        if (method != null) {
+            return this.method(method);
+        }
+        throw new RuntimeError(position, "Undefined property '" + name + "'.");
+    }
+
+    @Override
+    void set(String name, int position, Object value) {
+        throw new RuntimeError(position, "Can't add properties to maps.");
+    }
+
+    private LoxCallable method(Method method) {
+        if (this.methods == null) {
+            this.methods = new LoxCallable[Method.BY_NAME.size()];
+        }
+        if (this.methods[method.ordinal()] == null) {
+            this.methods[method.ordinal()] = new LoxCallable() {
+                @Override
+                public int arity() {
+                    return method.arity;
+                }
+
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    return LoxMap.this.call(method, interpreter, arguments);
+                }
+
+                @Override
+                public String toString() {
+                    return "<native fn>";
+                }
+            };
+        }
+        return this.methods[method.ordinal()];
+    }
+
+    private Object call(Method method, Interpreter interpreter, List<Object> arguments) {
+        switch (method) {
+            case HAS:
+                return this.find(arguments.get(0) == null ? NIL : arguments.get(0)) >= 0;
+            case REMOVE:
+                return this.remove(arguments.get(0));
+            case KEYS:
+            case VALUES: {
+                LoxList list = new LoxList();
+                List<Object> entries = this.entries();
+                for (int i = method == Method.KEYS ? 0 : 1; i < entries.size(); i += 2) {
+                    list.push(entries.get(i));
+                }
+                return list;
+            }
+            case FOR_EACH:
+                this.forEach(interpreter, arguments.get(0));
+                return null;
+            case CLEAR:
+                this.entries = new Object[INITIAL_CAPACITY * 2];
+                this.shift = 32 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+                this.size = 0;
+                this.modifications++;
+                return null;
+        }
+
+        // unreachable code
+        return null;
+    }
+
+    /*
+     * Calls a function with the key and value of each entry, straight from the table. Adding or
+     * removing entries from the function would move entries under it, so that is an error.
+     */
+    private void forEach(Interpreter interpreter, Object callee) {
+        if (!(callee instanceof LoxCallable) || ((LoxCallable) callee).arity() != 2) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Expected a function of two arguments.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        int modifications = this.modifications;
+        Object[] entries = this.entries;
+        List<Object> arguments = new ArrayList<>(2);
+        arguments.add(null);
+        arguments.add(null);
+        for (int slot = 0; slot < entries.length; slot += 2) {
+            Object key = entries[slot];
+            if (key == null) {
+                continue;
+            }
+            arguments.set(0, key == NIL ? null : key);
+            arguments.set(1, entries[slot + 1]);
+            interpreter.callBack(function, arguments);
+            if (this.modifications != modifications) {
+                throw new RuntimeError(RuntimeError.AT_CALL, "Map changed during forEach.");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{");
+        List<Object> entries = this.entries();
+        for (int i = 0; i < entries.size(); i += 2) {
+            if (i != 0) {
+                builder.append(", ");
+            }
+            builder.append(show(entries.get(i))).append(": ").append(show(entries.get(i + 1)));
+        }
+        builder.append("}");
+        return builder.toString();
+    }
+
+    private static String show(Object value) {
+        if (value == null) {
+            return "nil";
+        }
+        if (Numbers.isNumber(value)) {
+            return Numbers.toString(value);
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package com.ashwinchat.jlox;
+
+/*
+ * A record of a LoxTable, which reads and writes the table's columns at its row. Only the table's
+ * fields can be set.
+ */
+public class LoxRow extends LoxInstance {
+    private final LoxTable table;
+
+    private final int row;
+
+    LoxRow(LoxTable table, int row) {
+        super(null);
+        this.table = table;
+        this.row = row;
+    }
+
+    LoxTable table() {
+        return this.table;
+    }
+
+    int row() {
+        return this.row;
+    }
+
+    @Override
+    Object get(String name, int position) {
+        int field = this.table.field(name);
+        if (field < 0) {
+            throw new RuntimeError(position, "Undefined property '" + name + "'.");
+        }
+        return this.table.value(this.row, field);
+    }
+
+    @Override
+    void set(String name, int position, Object value) {
+        int field = this.table.field(name);
+        if (field < 0) {
+            throw new RuntimeError(position, "Records have no field '" + name + "'.");
+        }
+        this.table.store(this.row, field, value);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        // Two records of the same row are the same record.
+        return object instanceof LoxRow && ((LoxRow) object).table == this.table && ((LoxRow) object).row == this.row;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this.table) * 31 + this.row;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{");
+        String[] names = this.table.names();
+        for (int field = 0; field < names.length; field++) {
+            if (field != 0) {
+                builder.append(", ");
+            }
+            Object value = this.table.value(this.row, field);
+            builder.append(names[field]).append(": ");
+            builder.append(value == null ? "nil" : Numbers.isNumber(value) ? Numbers.toString(value) : value);
+        }
+        builder.append("}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,325 @@
+package com.ashwinchat.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A table of records that all have the same fields, made by Table(names) from a list of field
+ * names. Instead of an instance with its own map of fields for every record, the table keeps one
+ * column for each field. add() appends a record with every field nil and returns it, and 't[i]' is
+ * the record at i. Records are views of a row that read and write its columns like the fields of
+ * an instance, so they don't have to be kept to keep the data.
+ *
+ * A column is a double[] while it only holds numbers and nil, and becomes an Object[] the first
+ * time anything else is stored in it. sum, min and max scan a column without making any records,
+ * and column(name) copies one out, to a NumberArray when it can.
+ */
+public class LoxTable extends LoxInstance implements Indexable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Marks nil in a column of numbers. Every NaN is stored as the canonical one, whatever its
+    // payload, so no number stored in a column can look like it.
+    private static final long NIL = 0x7ff8_6e69_6c00_0000L;
+
+    private enum Method {
+        ADD("add", 0),
+        COLUMN("column", 1),
+        SUM("sum", 1),
+        MIN("min", 1),
+        MAX("max", 1),
+        FOR_EACH("forEach", 1);
+
+        final String name;
+        final int arity;
+
+        // Looked up by name on every property access, so values() isn't copied and scanned.
+        static final Map<String, Method> BY_NAME = new HashMap<>();
+
+        static {
+            for (Method method : values()) {
+                BY_NAME.put(method.name, method);
+            }
+        }
+
+        Method(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+    }
+
+    private final String[] names;
+    private final Map<String, Integer> fields = new HashMap<>();
+    private final Object[] columns;
+    private int size = 0;
+    private int capacity = INITIAL_CAPACITY;
+
+    // Methods, made the first time they are looked up.
+    private LoxCallable[] methods;
+
+    LoxTable(String[] names) {
+        super(null);
+        this.names = names;
+        this.columns = new Object[names.length];
+        for (int field = 0; field < names.length; field++) {
+            if (this.fields.put(names[field], field) != null) {
+                throw new RuntimeError(RuntimeError.AT_CALL, "Duplicate field '" + names[field] + "'.");
+            }
+            this.columns[field] = new double[this.capacity];
+        }
+    }
+
+    String[] names() {
+        return this.names;
+    }
+
+    /*
+     * Returns the column index of a field, or -1 if records don't have it.
+     */
+    int field(String name) {
+        Integer field = this.fields.get(name);
+        return field == null ? -1 : field;
+    }
+
+    Object value(int row, int field) {
+        Object column = this.columns[field];
+        if (column instanceof double[]) {
+            double value = ((double[]) column)[row];
+            return Double.doubleToRawLongBits(value) == NIL ? null : Numbers.of(value);
+        }
+        return ((Object[]) column)[row];
+    }
+
+    void store(int row, int field, Object value) {
+        Object column = this.columns[field];
+        if (column instanceof double[]) {
+            if (value == null) {
+                ((double[]) column)[row] = Double.longBitsToDouble(NIL);
+                return;
+            }
+            if (Numbers.isNumber(value)) {
+                double number = Numbers.toDouble(value);
+                ((double[]) column)[row] = Double.isNaN(number) ? Double.NaN : number;
+                return;
+            }
+            column = this.columns[field] = this.boxed(field);
+        }
+        ((Object[]) column)[row] = value;
+    }
+
+    private Object[] boxed(int field) {
+        Object[] column = new Object[this.capacity];
+        for (int row = 0; row < this.size; row++) {
+            column[row] = this.value(row, field);
+        }
+        return column;
+    }
+
+    /*
+     * Appends a row with every field nil, returning its index.
+     */
+    int add() {
+        if (this.size == this.capacity) {
+            this.capacity *= 2;
+            for (int field = 0; field < this.columns.length; field++) {
+                Object column = this.columns[field];
+                this.columns[field] = column instanceof double[]
+                        ? Arrays.copyOf((double[]) column, this.capacity)
+                        : Arrays.copyOf((Object[]) column, this.capacity);
+            }
+        }
+        for (Object column : this.columns) {
+            if (column instanceof double[]) {
+                ((double[]) column)[this.size] = Double.longBitsToDouble(NIL);
+            }
+        }
+        return this.size++;
+    }
+
+    @Override
+    public int length() {
+        return this.size;
+    }
+
+    @Override
+    public Object get(int index) {
+        return new LoxRow(this, index);
+    }
+
+    @Override
+    public void set(int index, int position, Object value) {
+        throw new RuntimeError(position, "Can't replace the records of a table.");
+    }
+
+    @Override
+    Object get(String name, int position) {
+        if (name.equals("length")) {
+            return (long) this.size;
+        }
+        Method method = Method.BY_NAME.get(name);
+        if (method != null) {
+            return this.method(method);
+        }
+        throw new RuntimeError(position, "Undefined property '" + name + "'.");
+    }
+
+    @Override
+    void set(String name, int position, Object value) {
+        throw new RuntimeError(position, "Can't add properties to tables.");
+    }
+
+    private LoxCallable method(Method method) {
+        if (this.methods == null) {
+            this.methods = new LoxCallable[Method.BY_NAME.size()];
+        }
+        if (this.methods[method.ordinal()] == null) {
+            this.methods[method.ordinal()] = new LoxCallable() {
+                @Override
+                public int arity() {
+                    return method.arity;
+                }
+
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    return LoxTable.this.call(method, interpreter, arguments);
+                }
+
+                @Override
+                public String toString() {
+                    return "<native fn>";
+                }
+            };
+        }
+        return this.methods[method.ordinal()];
+    }
+
+    private Object call(Method method, Interpreter interpreter, List<Object> arguments) {
+        switch (method) {
+            case ADD:
+                return new LoxRow(this, this.add());
+            case COLUMN:
+                return this.column(this.argument(arguments.get(0)));
+            case SUM:
+                return this.sum(this.argument(arguments.get(0)));
+            case MIN:
+                return this.extreme(this.argument(arguments.get(0)), -1);
+            case MAX:
+                return this.extreme(this.argument(arguments.get(0)), 1);
+            case FOR_EACH:
+                this.forEach(interpreter, arguments.get(0));
+                return null;
+        }
+
+        // unreachable code
+        return null;
+    }
+
+    private int argument(Object name) {
+        int field = name instanceof String ? this.field((String) name) : -1;
+        if (field < 0) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Expected the name of a field.");
+        }
+        return field;
+    }
+
+    private Object column(int field) {
+        Object column = this.columns[field];
+        if (column instanceof double[]) {
+            double[] values = (double[]) column;
+            boolean nils = false;
+            for (int row = 0; row < this.size && !nils; row++) {
+                nils = Double.doubleToRawLongBits(values[row]) == NIL;
+            }
+            if (!nils) {
+                NumberArray array = new NumberArray(this.size);
+                System.arraycopy(values, 0, array.values(), 0, this.size);
+                return array;
+            }
+        }
+        LoxList list = new LoxList();
+        for (int row = 0; row < this.size; row++) {
+            list.push(this.value(row, field));
+        }
+        return list;
+    }
+
+    private Object sum(int field) {
+        Object column = this.columns[field];
+        double sum = 0;
+        if (column instanceof double[]) {
+            double[] values = (double[]) column;
+            for (int row = 0; row < this.size; row++) {
+                if (Double.doubleToRawLongBits(values[row]) == NIL) {
+                    throw new RuntimeError(RuntimeError.AT_CALL, "Can only sum numbers.");
+                }
+                sum += values[row];
+            }
+        } else {
+            Object[] values = (Object[]) column;
+            for (int row = 0; row < this.size; row++) {
+                if (!Numbers.isNumber(values[row])) {
+                    throw new RuntimeError(RuntimeError.AT_CALL, "Can only sum numbers.");
+                }
+                sum += Numbers.toDouble(values[row]);
+            }
+        }
+        return Numbers.of(sum);
+    }
+
+    /*
+     * Returns the least number in a column for a negative sign and the greatest for a positive
+     * one, skipping nils. It is nil when there are no numbers.
+     */
+    private Object extreme(int field, int sign) {
+        Object column = this.columns[field];
+        boolean found = false;
+        double extreme = 0;
+        for (int row = 0; row < this.size; row++) {
+            double value;
+            if (column instanceof double[]) {
+                value = ((double[]) column)[row];
+                if (Double.doubleToRawLongBits(value) == NIL) {
+                    continue;
+                }
+            } else {
+                Object element = ((Object[]) column)[row];
+                if (element == null) {
+                    continue;
+                }
+                if (!Numbers.isNumber(element)) {
+                    throw new RuntimeError(RuntimeError.AT_CALL, "Can only compare numbers.");
+                }
+                value = Numbers.toDouble(element);
+            }
+            if (!found || (sign < 0 ? value < extreme : value > extreme)) {
+                extreme = value;
+                found = true;
+            }
+        }
+        return found ? Numbers.of(extreme) : null;
+    }
+
+    /*
+     * Calls a function with each record in turn. Records added by the function are visited too.
+     */
+    private void forEach(Interpreter interpreter, Object callee) {
+        if (!(callee instanceof LoxCallable) || ((LoxCallable) callee).arity() != 1) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Expected a function of one argument.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        List<Object> arguments = new ArrayList<>(1);
+        arguments.add(null);
+        for (int row = 0; row < this.size; row++) {
+            // A record the function keeps has to stay at its row, so each gets its own.
+            arguments.set(0, new LoxRow(this, row));
+            interpreter.callBack(function, arguments);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<table of " + this.size + ">";
+    }
+}
@@ -0,0 +1,64 @@
+package com.ashwinchat.jlox;
+
+/*
+ * A fixed-size array that can only hold numbers, which it keeps unboxed. NumberArray(size) makes
+ * one with every element zero. Elements are read and written with index syntax, and length is
+ * its only property.
+ */
+public class NumberArray extends LoxInstance implements Indexable {
+    private final double[] values;
+
+    public NumberArray(int size) {
+        super(null);
+        this.values = new double[size];
+    }
+
+    double[] values() {
+        return this.values;
+    }
+
+    @Override
+    public int length() {
+        return this.values.length;
+    }
+
+    @Override
+    public Object get(int index) {
+        return Numbers.of(this.values[index]);
+    }
+
+    @Override
+    public void set(int index, int position, Object value) {
+        if (!Numbers.isNumber(value)) {
+            throw new RuntimeError(position, "Can only store numbers in a NumberArray.");
+        }
+        this.values[index] = Numbers.toDouble(value);
+    }
+
+    @Override
+    Object get(String name, int position) {
+        if (name.equals("length")) {
+            return (long) this.values.length;
+        }
+        throw new RuntimeError(position, "Undefined property '" + name + "'.");
+    }
+
+    @Override
+    void set(String name, int position, Object value) {
+        throw new RuntimeError(position, "Can't add properties to arrays.");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        for (int i = 0; i < this.values.length; ++i) {
+            if (i != 0) {
+                builder.append(", ");
+            }
+            builder.append(this.values[i]);
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package com.ashwinchat.jlox;
+
+/*
+ * Lox has a single number type that behaves like a double, but most numbers in a program are
+ * small integers. An integral number is represented as a Long whenever a double holds it exactly,
+ * and any other number as a Double, so each number has exactly one representation and equals()
+ * still compares numbers the way it always has. Negative zero stays a Double, so it still prints
+ * as "-0" and still isn't equal to zero.
+ *
+ * Arithmetic on two Longs stays in longs as long as the result is the integer the double
+ * operation would have produced, and falls back to doubles when it isn't.
+ */
+final class Numbers {
+    // Every integer up to this magnitude is exactly a double.
+    private static final long MAX_EXACT = 1L << 53;
+
+    // Doubles this large print in scientific notation, so smaller Longs can print themselves.
+    private static final long MAX_PLAIN = 10_000_000;
+
+    private Numbers() {
+    }
+
+    /*
+     * Returns the representation of a number.
+     */
+    static Object of(double value) {
+        long integer = (long) value;
+        if (integer == value && integer >= -MAX_EXACT && integer <= MAX_EXACT
+                && (integer != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            return integer;
+        }
+        return value;
+    }
+
+    /*
+     * Returns the representation of the exact result of an integer operation, rounding it like a
+     * double would if it is too large. Rounding can land on a number that is a Long, like 2^53.
+     */
+    private static Object of(long value) {
+        if (value >= -MAX_EXACT && value <= MAX_EXACT) {
+            return value;
+        }
+        return of((double) value);
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    static double toDouble(Object number) {
+        if (number instanceof Long) {
+            return (long) number;
+        }
+        return (double) number;
+    }
+
+    /*
+     * Converts a number to an index, truncating and saturating it like a cast from double.
+     */
+    static int toInt(Object number) {
+        if (number instanceof Long) {
+            long value = (long) number;
+            return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+        }
+        return (int) (double) number;
+    }
+
+    static Object add(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return of((long) left + (long) right);
+        }
+        return of(toDouble(left) + toDouble(right));
+    }
+
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return of((long) left - (long) right);
+        }
+        return of(toDouble(left) - toDouble(right));
+    }
+
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long) left;
+            long b = (long) right;
+            // A zero product of a negative number is negative zero.
+            if ((a == 0 || b == 0) && (a < 0 || b < 0)) {
+                return -0.0;
+            }
+            long product = a * b;
+            if (Math.multiplyHigh(a, b) == product >> 63) {
+                return of(product);
+            }
+        }
+        return of(toDouble(left) * toDouble(right));
+    }
+
+    static Object divide(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long) left;
+            long b = (long) right;
+            if (a != 0 && b != 0 && a % b == 0) {
+                return a / b;
+            }
+        }
+        return of(toDouble(left) / toDouble(right));
+    }
+
+    static Object negate(Object number) {
+        if (number instanceof Long && (long) number != 0) {
+            return -(long) number;
+        }
+        return of(-toDouble(number));
+    }
+
+    static boolean greater(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return (long) left > (long) right;
+        }
+        return toDouble(left) > toDouble(right);
+    }
+
+    static boolean greaterEqual(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return (long) left >= (long) right;
+        }
+        return toDouble(left) >= toDouble(right);
+    }
+
+    static boolean less(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return (long) left < (long) right;
+        }
+        return toDouble(left) < toDouble(right);
+    }
+
+    static boolean lessEqual(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return (long) left <= (long) right;
+        }
+        return toDouble(left) <= toDouble(right);
+    }
+
+    /*
+     * Prints a number the way Lox always has, as a double without a trailing ".0".
+     */
+    static String toString(Object number) {
+        if (number instanceof Long && Math.abs((long) number) < MAX_PLAIN) {
+            return number.toString();
+        }
+        String text = Double.toString(toDouble(number));
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+}
@@ -11,19 +11,54 @@ public class Parser {
     private final List<Token> tokens;
     private int current = 0;
     private int loopDepth = 0;
+    private boolean hadError = false;
+
+    /*
+     * When a resolver is given, scopes are resolved while parsing (like the single-pass compiler in
+     * clox), so the statements returned by parse() need no separate Resolver pass.
+     */
+    private final Resolver resolver;
+
+    // When set, function bodies are parsed without being resolved, and resolved by LazyBody on
+    // first use.
+    private final boolean lazy;
 
     Parser(List<Token> tokens) {
+        this(tokens, null, false);
+    }
+
+    Parser(List<Token> tokens, Resolver resolver, boolean lazy) {
         this.tokens = tokens;
+        this.resolver = resolver;
+        this.lazy = lazy;
     }
 
     List<Stmt> parse() {
+        this.holdResolverErrors();
         List<Stmt> statements = new ArrayList<>();
         while (!this.isAtEnd()) {
             statements.add(this.declaration());
         }
+        this.releaseResolverErrors();
         return statements;
     }
 
+    boolean hadError() {
+        return this.hadError;
+    }
+
+    private void holdResolverErrors() {
+        if (this.resolver != null) {
+            this.resolver.holdErrors();
+        }
+    }
+
+    // A tree with syntax errors is only partly there, so what the resolver found in it is noise.
+    // Returns whether the resolver found no errors.
+    private boolean releaseResolverErrors() {
+        return this.resolver == null || this.resolver.releaseErrors(!this.hadError);
+    }
+
     private Stmt declaration() {
         try {
             if (this.match(CLASS)) {
@@ -47,23 +82,44 @@ public class Parser {
 
         Expr.Variable superclass = null;
         if (this.match(LESS)) {
-            this.consume(IDENTIFIER, "Expect superclass name after '<'.");
-            superclass = new Expr.Variable(this.previous());
+            Token superclassName = this.consume(IDENTIFIER, "Expect superclass name after '<'.");
+            superclass = new Expr.Variable(superclassName.lexeme, superclassName.position);
         }
         this.consume(LEFT_BRACE, "Expect '{' before class body");
 
+        Resolver.ClassType enclosingClass = null;
+        if (this.resolver != null) {
+            enclosingClass = this.resolver.beginClass(name.lexeme, name.position, superclass);
+        }
+
         List<Stmt.Function> methods = new ArrayList<>();
-        while (!this.check(RIGHT_BRACE) && !this.isAtEnd()) {
-            methods.add(this.function("method"));
+        Stmt.Class stmt = new Stmt.Class(name.lexeme, name.position, superclass, methods);
+        try {
+            while (!this.check(RIGHT_BRACE) && !this.isAtEnd()) {
+                methods.add(this.function("method"));
+            }
+        } finally {
+            if (this.resolver != null) {
+                this.resolver.endClass(superclass, enclosingClass, stmt);
+            }
         }
 
         this.consume(RIGHT_BRACE, "Expect '}' after class body.");
 
-        return new Stmt.Class(name, superclass, methods);
+        return stmt;
     }
 
     private Stmt.Function function(String kind) {
         Token name = this.consume(IDENTIFIER, "Expect " + kind + " name.");
+        Resolver.FunctionType type = Resolver.FunctionType.FUNCTION;
+        if (this.resolver != null) {
+            if (kind.equals("method")) {
+                type = this.resolver.methodType(name.lexeme);
+            } else {
+                this.resolver.declare(name.lexeme, name.position);
+                this.resolver.define(name.lexeme);
+            }
+        }
         this.consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!this.check(RIGHT_PAREN)) {
@@ -77,19 +133,42 @@ public class Parser {
         }
         this.consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
+        String[] params = new String[parameters.size()];
+        int[] paramPositions = new int[parameters.size()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = parameters.get(i).lexeme;
+            paramPositions[i] = parameters.get(i).position;
+        }
+
         this.consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = this.block();
-        return new Stmt.Function(name, parameters, body);
+        if (this.resolver == null) {
+            return new Stmt.Function(name.lexeme, name.position, params, paramPositions, this.body(name));
+        }
+
+        Resolver.FunctionType enclosingFunction = this.resolver.beginFunction(type, params, paramPositions);
+        Stmt.Function function = null;
+        try {
+            function = new Stmt.Function(name.lexeme, name.position, params, paramPositions, this.body(name));
+            return function;
+        } finally {
+            this.resolver.endFunction(enclosingFunction, function);
+        }
     }
 
     private Stmt varDeclaration() {
         Token name = this.consume(IDENTIFIER, "Expect variable name.");
+        if (this.resolver != null) {
+            this.resolver.declare(name.lexeme, name.position);
+        }
         Expr initializer = null;
         if (this.match(EQUAL)) {
             initializer = this.expression();
         }
         this.consume(SEMICOLON, "Expect ';' after variable declaration.");
-        return new Stmt.Var(name, initializer);
+        if (this.resolver != null) {
+            this.resolver.define(name.lexeme);
+        }
+        return new Stmt.Var(name.lexeme, name.position, initializer);
     }
 
     private Stmt statement() {
@@ -103,7 +182,7 @@ public class Parser {
             return this.whileStatement();
         }
         if (this.match(LEFT_BRACE)) {
-            return new Stmt.Block(this.block());
+            return this.blockStatement();
         }
         if (this.match(FOR)) {
             return this.forStatement();
@@ -126,7 +205,11 @@ public class Parser {
         }
 
         this.consume(SEMICOLON, "Expect ';' after return value.");
-        return new Stmt.Return(keyword, value);
+        Stmt.Return stmt = new Stmt.Return(keyword.position, value);
+        if (this.resolver != null) {
+            this.resolver.resolveReturn(stmt);
+        }
+        return stmt;
     }
 
     private Stmt breakStatement() {
@@ -140,6 +223,20 @@ public class Parser {
     private Stmt forStatement() {
         this.consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
+        if (!this.check(VAR)) {
+            return this.forClauses();
+        }
+
+        // A variable initializer is desugared into a block wrapping the loop.
+        this.beginScope();
+        try {
+            return this.forClauses();
+        } finally {
+            this.endScope();
+        }
+    }
+
+    private Stmt forClauses() {
         Stmt initalizer;
         if (this.match(SEMICOLON)) {
             initalizer = null;
@@ -149,24 +246,38 @@ public class Parser {
             initalizer = this.expressionStatement();
         }
 
+        int conditionStart = this.current;
         Expr condition = null;
         if (!this.check(SEMICOLON)) {
             condition = this.expression();
         }
+        int conditionEnd = this.current;
         this.consume(SEMICOLON, "Expect ';' after loop condition.");
 
         Expr increment = null;
         if (!this.check(RIGHT_PAREN)) {
             increment = this.expression();
         }
+        return this.forBody(initalizer, condition, conditionStart, conditionEnd, increment);
+    }
+
+    private Stmt forBody(Stmt initalizer, Expr condition, int conditionStart, int conditionEnd, Expr increment) {
         this.consume(RIGHT_PAREN, "Expect ')' after for clauses.");
 
         try {
             loopDepth++;
+            int bodyStart = this.current;
             Stmt body = this.statement();
+
+            Stmt counted = this.countedLoop(initalizer, condition, conditionStart, conditionEnd, increment, body, bodyStart);
+            if (counted != null) {
+                return counted;
+            }
+
             if (increment != null) {
                 body = new Stmt.Block(
-                        Arrays.asList(body, new Stmt.Expression(increment))
+                        Arrays.asList(body, new Stmt.Expression(increment)),
+                        false
                 );
             }
 
@@ -176,7 +287,7 @@ public class Parser {
             body = new Stmt.While(condition, body);
 
             if (initalizer != null) {
-                body = new Stmt.Block(Arrays.asList(initalizer, body));
+                body = new Stmt.Block(Arrays.asList(initalizer, body), initalizer instanceof Stmt.Var);
             }
 
             return body;
@@ -186,6 +297,70 @@ public class Parser {
 
     }
 
+    /*
+     * Recognizes a loop of the form 'for (var i = start; i < bound; i = i + step)', with '<=' or a
+     * numeric literal step, whose bound and body never assign the counter. Such a loop can count
+     * in a primitive instead of going through the variable every iteration. Returns null for any
+     * other loop.
+     */
+    private Stmt countedLoop(Stmt initalizer, Expr condition, int conditionStart, int conditionEnd,
+                             Expr increment, Stmt body, int bodyStart) {
+        if (!(initalizer instanceof Stmt.Var) || ((Stmt.Var) initalizer).initializer == null
+                || !(condition instanceof Expr.Binary) || !(increment instanceof Expr.Assign)) {
+            return null;
+        }
+        Stmt.Var variable = (Stmt.Var) initalizer;
+        String name = variable.name;
+
+        Expr.Binary test = (Expr.Binary) condition;
+        if ((test.operator != LESS && test.operator != LESS_EQUAL) || !this.isVariable(test.left, name)) {
+            return null;
+        }
+
+        Expr.Assign assign = (Expr.Assign) increment;
+        if (!assign.name.equals(name) || !(assign.value instanceof Expr.Binary)) {
+            return null;
+        }
+        Expr.Binary sum = (Expr.Binary) assign.value;
+        if (sum.operator != PLUS || !this.isVariable(sum.left, name)
+                || !(sum.right instanceof Expr.Literal) || !Numbers.isNumber(((Expr.Literal) sum.right).value)) {
+            return null;
+        }
+
+        // The bound starts after the counter and the comparison.
+        if (this.mentions(name, conditionStart + 2, conditionEnd, false)
+                || this.mentions(name, bodyStart, this.current, true)) {
+            return null;
+        }
+
+        boolean read = this.mentions(name, bodyStart, this.current, false);
+        return new Stmt.Counted(variable, test, Numbers.toDouble(((Expr.Literal) sum.right).value), read, body);
+    }
+
+    private boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.equals(name);
+    }
+
+    /*
+     * Looks for a variable in a range of tokens, either anywhere it is used or only where it is
+     * assigned. Property names that happen to match don't count.
+     */
+    private boolean mentions(String name, int start, int end, boolean assigned) {
+        for (int i = start; i < end; i++) {
+            Token token = this.tokens.get(i);
+            if (token.type != IDENTIFIER || !token.lexeme.equals(name)) {
+                continue;
+            }
+            if (i > 0 && this.tokens.get(i - 1).type == DOT) {
+                continue;
+            }
+            if (!assigned || this.tokens.get(i + 1).type == EQUAL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private Stmt whileStatement() {
         this.consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = this.expression();
@@ -214,6 +389,67 @@ public class Parser {
         return new Stmt.If(condition, thenBranch, elseBranch);
     }
 
+    private List<Stmt> body(Token name) {
+        if (!this.lazy) {
+            return this.block();
+        }
+
+        // Parse the body now, so that its syntax errors are reported with the rest of the
+        // program's, but leave resolving it until it is first used. Functions declared in it are
+        // parsed along with it.
+        int start = this.current;
+        Parser parser = new Parser(this.tokens, null, false);
+        parser.current = start;
+        parser.loopDepth = this.loopDepth;
+        List<Stmt> statements;
+        try {
+            statements = parser.block();
+        } finally {
+            this.current = parser.current;
+            this.hadError |= parser.hadError;
+        }
+
+        LazyBody body = new LazyBody(name.lexeme, name.position, statements,
+                LazyBody.names(this.tokens.subList(start, this.current)));
+        if (this.resolver != null) {
+            this.resolver.resolveLater(body);
+        }
+        return body;
+    }
+
+    /*
+     * Parses a block after its '{'. Only blocks that declare something get a scope of their own,
+     * which a fused resolver has to know before it resolves the block's contents, so it takes it
+     * from what the scanner saw on its way past the block.
+     */
+    private Stmt blockStatement() {
+        if (this.resolver == null) {
+            List<Stmt> statements = this.block();
+            return new Stmt.Block(statements, declaresAnything(statements));
+        }
+
+        boolean scoped = this.previous().declares;
+        if (scoped) {
+            this.beginScope();
+        }
+        try {
+            return new Stmt.Block(this.block(), scoped);
+        } finally {
+            if (scoped) {
+                this.endScope();
+            }
+        }
+    }
+
+    private static boolean declaresAnything(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function || statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
         while (!this.check(RIGHT_BRACE) && !this.isAtEnd()) {
@@ -251,11 +487,18 @@ public class Parser {
             Expr value = this.assignment();
 
             if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
+                Expr.Variable variable = (Expr.Variable) expr;
+                Expr.Assign assign = new Expr.Assign(variable.name, variable.position, value);
+                if (this.resolver != null) {
+                    this.resolver.resolveAssign(assign);
+                }
+                return assign;
             } else if (expr instanceof Expr.Get) {
                 Expr.Get get = (Expr.Get) expr;
-                return new Expr.Set(get.object, get.name, value);
+                return new Expr.Set(get.object, get.name, get.position, value);
+            } else if (expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index) expr;
+                return new Expr.SetIndex(index.object, index.position, index.index, value);
             }
             error(equals, "Invalid assignment target.");
         }
@@ -268,7 +511,7 @@ public class Parser {
         while (this.match(OR)) {
             Token operator = this.previous();
             Expr right = this.and();
-            expr = new Expr.Logical(expr, operator, right);
+            expr = new Expr.Logical(expr, operator.type, right);
         }
 
         return expr;
@@ -280,7 +523,7 @@ public class Parser {
         while (this.match(AND)) {
             Token operator = this.previous();
             Expr right = this.equality();
-            expr = new Expr.Logical(expr, operator, right);
+            expr = new Expr.Logical(expr, operator.type, right);
         }
 
         return expr;
@@ -292,7 +535,7 @@ public class Parser {
         while (this.match(BANG_EQUAL, EQUAL_EQUAL)) {
             Token operator = this.previous();
             Expr right = this.comparison();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = new Expr.Binary(expr, operator.type, operator.position, right);
         }
 
         return expr;
@@ -304,7 +547,7 @@ public class Parser {
         while (this.match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
             Token operator = this.previous();
             Expr right = this.term();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = new Expr.Binary(expr, operator.type, operator.position, right);
         }
 
         return expr;
@@ -316,7 +559,7 @@ public class Parser {
         while (this.match(MINUS, PLUS)) {
             Token operator = this.previous();
             Expr right = this.factor();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = new Expr.Binary(expr, operator.type, operator.position, right);
         }
 
         return expr;
@@ -328,7 +571,7 @@ public class Parser {
         while (this.match(SLASH, STAR)) {
             Token operator = this.previous();
             Expr right = this.unary();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = new Expr.Binary(expr, operator.type, operator.position, right);
         }
 
         return expr;
@@ -338,7 +581,7 @@ public class Parser {
         if (this.match(BANG, MINUS)) {
             Token operator = this.previous();
             Expr right = this.unary();
-            return new Expr.Unary(operator, right);
+            return new Expr.Unary(operator.type, operator.position, right);
         }
         return this.call();
     }
@@ -351,7 +594,12 @@ public class Parser {
                 expr = this.finishCall(expr);
             } else if (this.match(DOT)) {
                 Token name = this.consume(IDENTIFIER, "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
+                expr = new Expr.Get(expr, name.lexeme, name.position);
+            } else if (this.match(LEFT_BRACKET)) {
+                Token bracket = this.previous();
+                Expr index = this.expression();
+                this.consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expr.Index(expr, bracket.position, index);
             } else {
                 break;
             }
@@ -372,7 +620,7 @@ public class Parser {
 
         Token paren = this.consume(RIGHT_PAREN, "Expect ')' after arguments");
 
-        return new Expr.Call(callee, paren, arguments);
+        return new Expr.Call(callee, paren.position, arguments);
     }
 
     private Expr primary() {
@@ -394,7 +642,11 @@ public class Parser {
             Token keyword = this.previous();
             this.consume(DOT, "Expect '.' after 'super'.");
             Token method = this.consume(IDENTIFIER, "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
+            Expr.Super expr = new Expr.Super(keyword.position, method.lexeme, method.position);
+            if (this.resolver != null) {
+                this.resolver.resolveSuper(expr);
+            }
+            return expr;
         }
 
         if (this.match(LEFT_PAREN)) {
@@ -404,16 +656,38 @@ public class Parser {
         }
 
         if (this.match(THIS)) {
-            return new Expr.This(this.previous());
+            Expr.This expr = new Expr.This(this.previous().position);
+            if (this.resolver != null) {
+                this.resolver.resolveThis(expr);
+            }
+            return expr;
         }
 
         if (this.match(IDENTIFIER)) {
-            return new Expr.Variable(this.previous());
+            Token name = this.previous();
+            Expr.Variable expr = new Expr.Variable(name.lexeme, name.position);
+            // An assignment target is resolved once assignment() has built the Expr.Assign.
+            if (this.resolver != null && !this.check(EQUAL)) {
+                this.resolver.resolveVariable(expr);
+            }
+            return expr;
         }
 
         throw error(this.peek(), "Expect expression.");
     }
 
+    private void beginScope() {
+        if (this.resolver != null) {
+            this.resolver.beginScope();
+        }
+    }
+
+    private void endScope() {
+        if (this.resolver != null) {
+            this.resolver.endScope();
+        }
+    }
+
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (this.check(type)) {
@@ -460,6 +734,7 @@ public class Parser {
 
     private ParseError error(Token token, String message) {
         Lox.error(token, message);
+        this.hadError = true;
         return new ParseError();
     }
 
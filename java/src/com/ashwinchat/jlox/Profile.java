@@ -0,0 +1,231 @@
+package com.ashwinchat.jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * The functions a script called, kept in a file between runs of the script.
+ *
+ * Functions are identified by their offsets in the script, and the file holds the same hash of
+ * the source as the program cache, so the profile of an edited script is thrown away. A run
+ * starts by parsing and inferring types for the bodies of every function the last run called,
+ * which lazy parsing would otherwise leave until they are first called and type inference would
+ * never see. Which function each call site called isn't kept: the check a call site caches is
+ * against a function object, which only exists once the run has made it.
+ */
+class Profile implements Stmt.Visitor<Void> {
+    private static final int MAGIC = 0x4a4c5850;
+    private static final int VERSION = 2;
+
+    private final Path path;
+    private final String source;
+    private final byte[] hash;
+
+    // The offsets of every function called by the last run.
+    private final Set<Integer> called = new HashSet<>();
+
+    // The functions this run has called, by offset.
+    private final Map<Integer, Stmt.Function> functions = new HashMap<>();
+
+    // Every function already recorded, so callbacks that run over and over are only looked at once.
+    private final Set<Stmt.Function> recorded = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Profile(Path path, String source) {
+        this.path = path;
+        this.source = source;
+        this.hash = ProgramCache.hash(source);
+    }
+
+    /*
+     * Reads the profile of a script, starting an empty one if there is none for this source.
+     */
+    static Profile load(Path path, String source) {
+        Profile profile = new Profile(path, source);
+        if (!Files.isRegularFile(path)) {
+            return profile;
+        }
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return profile;
+            }
+            byte[] stored = new byte[profile.hash.length];
+            in.get(stored);
+            if (!Arrays.equals(stored, profile.hash)) {
+                return profile;
+            }
+
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                profile.called.add(in.getInt());
+            }
+        } catch (IOException | RuntimeException error) {
+            profile.called.clear();
+        }
+        return profile;
+    }
+
+    /*
+     * Records a function that has been called. Functions in other sources, such as a prelude,
+     * can't be found again by offset and are left out.
+     */
+    void called(LoxFunction function) {
+        if (!this.recorded.add(function.declaration())) {
+            return;
+        }
+        int position = function.declaration().position;
+        if (!SourceMap.source(position).equals(this.source)) {
+            return;
+        }
+        this.functions.put(SourceMap.offset(position), function.declaration());
+    }
+
+    /*
+     * Parses the bodies of the functions in a program that the last run called.
+     */
+    void prepare(List<Stmt> statements) {
+        if (this.called.isEmpty()) {
+            return;
+        }
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    /*
+     * Writes the profile. Failing to write only costs the next run its head start.
+     */
+    void save() {
+        try {
+            Path directory = this.path.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "jlox", ".tmp");
+            try (OutputStream file = Files.newOutputStream(temporary)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(this.hash);
+
+                int count = 0;
+                for (Stmt.Function function : this.functions.values()) {
+                    if (this.parsed(function)) {
+                        count++;
+                    }
+                }
+                out.writeInt(count);
+                for (Map.Entry<Integer, Stmt.Function> function : this.functions.entrySet()) {
+                    if (this.parsed(function.getValue())) {
+                        out.writeInt(function.getKey());
+                    }
+                }
+                out.flush();
+            }
+            Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException error) {
+            System.err.println("Could not write profile: " + error.getMessage());
+        }
+    }
+
+    /*
+     * Leaves out functions whose bodies failed to compile when they were called, so the next run
+     * doesn't report the error before it gets to the call.
+     */
+    private boolean parsed(Stmt.Function function) {
+        return !(function.body instanceof LazyBody) || ((LazyBody) function.body).isResolved();
+    }
+
+    /*
+     * A function has to be called before any function declared in its body can be, so bodies that
+     * weren't called are left unparsed without looking inside them.
+     */
+    private void prepare(Stmt.Function function) {
+        if (!this.called.contains(SourceMap.offset(function.position))) {
+            return;
+        }
+        // Looking at a lazy body parses it.
+        for (Stmt statement : function.body) {
+            statement.accept(this);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            this.prepare(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        return stmt.body.accept(this);
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        this.prepare(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        return stmt.body.accept(this);
+    }
+}
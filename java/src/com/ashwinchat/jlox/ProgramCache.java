@@ -0,0 +1,123 @@
+package com.ashwinchat.jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A directory of parsed and resolved programs, stored as FlatAst arrays.
+ *
+ * Entries are named after a SHA-256 hash of the format version and the source text, so an edited
+ * script or a newer interpreter simply misses the cache. The hash is repeated in the entry's
+ * header and checked on load, and unreadable entries are treated as misses and rewritten.
+ */
+public class ProgramCache {
+    // Bump whenever the AST or this file format changes.
+    static final int VERSION = 5;
+
+    private static final int MAGIC = 0x4a4c4f58;
+
+    private final Path directory;
+
+    ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /*
+     * Returns the cached statements for a source, resolved against the interpreter, or null.
+     */
+    List<Stmt> load(String source, Interpreter interpreter) {
+        byte[] hash = hash(source);
+        Path path = this.entry(hash);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        FlatAst program;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            program = read(buffer, hash);
+        } catch (IOException | RuntimeException error) {
+            return null;
+        }
+        if (program == null) {
+            return null;
+        }
+
+        program.relocate(SourceMap.add(source));
+        return program.decode(interpreter);
+    }
+
+    /*
+     * Writes resolved statements to the cache. Failing to write only costs the next run a parse.
+     */
+    void store(String source, int base, List<Stmt> statements, Interpreter interpreter) {
+        FlatAst program = FlatAst.encode(statements, interpreter);
+        program.relocate(-base);
+
+        byte[] hash = hash(source);
+        try {
+            Files.createDirectories(this.directory);
+            Path temporary = Files.createTempFile(this.directory, "jlox", ".tmp");
+            try (OutputStream file = Files.newOutputStream(temporary)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(hash);
+                program.write(out);
+                out.flush();
+            }
+            Files.move(temporary, this.entry(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException error) {
+            System.err.println("Could not write program cache: " + error.getMessage());
+        }
+    }
+
+    private Path entry(byte[] hash) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash) {
+            name.append(String.format("%02x", b));
+        }
+        return this.directory.resolve(name.append(".jloxc").toString());
+    }
+
+    /*
+     * Hashes a source together with the format version, so stale entries never match.
+     */
+    static byte[] hash(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(4).putInt(VERSION).array());
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static FlatAst read(ByteBuffer in, byte[] hash) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return null;
+        }
+        byte[] stored = new byte[hash.length];
+        in.get(stored);
+        if (!Arrays.equals(stored, hash)) {
+            return null;
+        }
+
+        return FlatAst.read(in);
+    }
+}
@@ -1,40 +1,128 @@
 package com.ashwinchat.jlox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final List<Map<String, Boolean>> scopes = new ArrayList<>();
+    private final List<Capture> captures = new ArrayList<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
-    private enum FunctionType {
+    // Errors held back while a parser resolves as it goes, until it knows whether it parsed cleanly.
+    private List<Runnable> heldErrors = null;
+    private boolean hadError = false;
+
+    enum FunctionType {
         NONE,
         FUNCTION,
         METHOD,
         INITIALIZER
     }
 
-    private enum ClassType {
+    enum ClassType {
         NONE,
         CLASS,
         SUBCLASS
     }
 
+    /*
+     * A function or class whose closure holds only the local variables it uses from outside it.
+     * Scopes from boundary inwards are its own; every other local it refers to is captured, along
+     * with how far up from its declaration the variable is found, and is reached through the
+     * environment just outside its own.
+     */
+    private static class Capture {
+        final int boundary;
+        final Map<String, Integer> depths = new LinkedHashMap<>();
+
+        Capture(int boundary) {
+            this.boundary = boundary;
+        }
+
+        String[] names() {
+            return this.depths.keySet().toArray(new String[0]);
+        }
+
+        int[] depths() {
+            int[] depths = new int[this.depths.size()];
+            int i = 0;
+            for (int depth : this.depths.values()) {
+                depths[i++] = depth;
+            }
+            return depths;
+        }
+    }
+
     Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
     }
 
+    /*
+     * Copies the current scopes so that a lazily parsed function body can be resolved later as
+     * if it had been resolved here.
+     */
+    Resolver snapshot() {
+        Resolver resolver = new Resolver(this.interpreter);
+        for (Map<String, Boolean> scope : this.scopes) {
+            resolver.scopes.add(new HashMap<>(scope));
+        }
+        resolver.captures.addAll(this.captures);
+        resolver.currentFunction = this.currentFunction;
+        resolver.currentClass = this.currentClass;
+        return resolver;
+    }
+
+    /*
+     * Holds back errors from here on instead of reporting them. A separate pass never resolves a
+     * program that failed to parse, so a fused parser only reports them if it had no errors itself.
+     */
+    void holdErrors() {
+        this.heldErrors = new ArrayList<>();
+    }
+
+    /*
+     * Reports the errors held back if asked to, returning whether there were none.
+     */
+    boolean releaseErrors(boolean report) {
+        List<Runnable> errors = this.heldErrors;
+        this.heldErrors = null;
+        if (report) {
+            for (Runnable error : errors) {
+                error.run();
+            }
+        }
+        return errors.isEmpty();
+    }
+
+    boolean hadError() {
+        return this.hadError;
+    }
+
+    private void error(int position, String message) {
+        this.hadError = true;
+        if (this.heldErrors != null) {
+            this.heldErrors.add(() -> Lox.errorAt(position, message));
+        } else {
+            Lox.errorAt(position, message);
+        }
+    }
+
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         this.resolve(expr.value);
-        this.resolveLocal(expr, expr.name);
+        this.resolveAssign(expr);
         return null;
     }
 
+    void resolveAssign(Expr.Assign expr) {
+        this.resolveLocal(expr, expr.name);
+    }
+
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
         this.resolve(expr.left);
@@ -78,24 +166,60 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!this.scopes.isEmpty() && this.scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer.");
+        this.resolveVariable(expr);
+        return null;
+    }
+
+    void resolveVariable(Expr.Variable expr) {
+        if (!this.scopes.isEmpty() && this.peekScope().get(expr.name) == Boolean.FALSE) {
+            this.error(expr.position, "Can't read local variable in its own initializer.");
         }
         this.resolveLocal(expr, expr.name);
-        return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (this.scopes.get(i).containsKey(name.lexeme)) {
-                this.interpreter.resolve(expr, this.scopes.size() - 1 - i);
-                return;
-            }
+    private void resolveLocal(Expr expr, String name) {
+        int depth = this.lookUp(name);
+        if (depth >= 0) {
+            this.interpreter.resolve(expr, depth);
         }
     }
 
+    /*
+     * Returns how many environments up a local variable is found, or -1 for a global.
+     */
+    private int lookUp(String name) {
+        return this.lookUp(name, this.scopes.size() - 1, this.captures.size() - 1);
+    }
+
+    private int lookUp(String name, int innermost, int capture) {
+        int scope = innermost;
+        while (scope >= 0 && !this.scopes.get(scope).containsKey(name)) {
+            scope--;
+        }
+        if (scope < 0) {
+            return -1;
+        }
+        if (capture < 0 || scope >= this.captures.get(capture).boundary) {
+            return innermost - scope;
+        }
+
+        // The variable is outside the innermost closure, which has to capture it, possibly from
+        // a closure enclosing that one.
+        Capture closure = this.captures.get(capture);
+        if (!closure.depths.containsKey(name)) {
+            closure.depths.put(name, this.lookUp(name, closure.boundary - 1, capture - 1));
+        }
+        return innermost - closure.boundary + 1;
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // Blocks that declare nothing run in the enclosing environment.
+        if (!stmt.scoped) {
+            this.resolve(stmt.statements);
+            return null;
+        }
+
         this.beginScope();
         this.resolve(stmt.statements);
         this.endScope();
@@ -108,6 +232,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
     }
 
+    /*
+     * Resolves the statements of a function body that was left for later, from a snapshot of the
+     * scopes it was declared in, returning whether they had no errors.
+     */
+    boolean resolveBody(LazyBody body, List<Stmt> statements) {
+        this.interpreter.resolved(body);
+        this.holdErrors();
+        this.resolve(statements);
+        return this.releaseErrors(true);
+    }
+
     private void resolve(Stmt statement) {
         statement.accept(this);
     }
@@ -116,12 +251,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
-    private void beginScope() {
-        this.scopes.push(new HashMap<String, Boolean>());
+    void beginScope() {
+        this.scopes.add(new HashMap<String, Boolean>());
     }
 
-    private void endScope() {
-        this.scopes.pop();
+    void endScope() {
+        this.scopes.remove(this.scopes.size() - 1);
+    }
+
+    private Map<String, Boolean> peekScope() {
+        return this.scopes.get(this.scopes.size() - 1);
     }
 
     @Override
@@ -137,7 +276,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        this.declare(stmt.name);
+        this.declare(stmt.name, stmt.position);
         this.define(stmt.name);
 
         this.resolveFunction(stmt, FunctionType.FUNCTION);
@@ -145,19 +284,72 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
+        FunctionType enclosingFunction = this.beginFunction(type, function.params, function.paramPositions);
+        if (function.body instanceof LazyBody && !((LazyBody) function.body).isResolved()) {
+            this.resolveLater((LazyBody) function.body);
+        } else {
+            this.resolve(function.body);
+        }
+        this.endFunction(enclosingFunction, function);
+    }
+
+    /*
+     * Leaves a function body to be resolved when it is first used. What the function
+     * captures has to be known before then, so it captures every variable in scope here that is
+     * named anywhere in the body.
+     */
+    void resolveLater(LazyBody body) {
+        for (String name : body.names()) {
+            this.lookUp(name);
+        }
+        body.resolveLater(this.snapshot());
+        this.interpreter.resolveLater(body);
+    }
+
+    /*
+     * Opens the scope of a function body with its parameters declared, returning the enclosing
+     * function type so that endFunction can restore it.
+     */
+    FunctionType beginFunction(FunctionType type, String[] params, int[] paramPositions) {
         FunctionType enclosingFunction = this.currentFunction;
         this.currentFunction = type;
 
+        // Methods capture nothing themselves; their class does.
+        if (type == FunctionType.FUNCTION) {
+            this.captures.add(new Capture(this.scopes.size()));
+        }
+
         this.beginScope();
-        for (Token param : function.params) {
-            this.declare(param);
-            this.define(param);
+        for (int i = 0; i < params.length; i++) {
+            this.declare(params[i], paramPositions[i]);
+            this.define(params[i]);
         }
-        this.resolve(function.body);
+        return enclosingFunction;
+    }
+
+    /*
+     * Closes the scope of a function body and records what the function captures, if it was
+     * parsed.
+     */
+    void endFunction(FunctionType enclosingFunction, Stmt.Function function) {
         this.endScope();
+        if (this.currentFunction == FunctionType.FUNCTION) {
+            Capture capture = this.captures.remove(this.captures.size() - 1);
+            if (function != null) {
+                function.upvalues = capture.names();
+                function.upvalueDepths = capture.depths();
+            }
+        }
         this.currentFunction = enclosingFunction;
     }
 
+    FunctionType methodType(String name) {
+        if (name.equals("this")) {
+            return FunctionType.INITIALIZER;
+        }
+        return FunctionType.METHOD;
+    }
+
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         this.resolve(stmt.condition);
@@ -176,21 +368,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
-        if (this.currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
-        }
+        this.resolveReturn(stmt);
         if (stmt.value != null) {
-            if (this.currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword, "Can't return a value from an initializer.");
-            }
             this.resolve(stmt.value);
         }
         return null;
     }
 
+    void resolveReturn(Stmt.Return stmt) {
+        if (this.currentFunction == FunctionType.NONE) {
+            this.error(stmt.position, "Can't return from top-level code.");
+        }
+        if (stmt.value != null && this.currentFunction == FunctionType.INITIALIZER) {
+            this.error(stmt.position, "Can't return a value from an initializer.");
+        }
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        this.declare(stmt.name);
+        this.declare(stmt.name, stmt.position);
         if (stmt.initializer != null) {
             this.resolve(stmt.initializer);
         }
@@ -198,25 +394,35 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void declare(Token name) {
+    void declare(String name, int position) {
         if (this.scopes.isEmpty()) {
             return;
         }
 
-        Map<String, Boolean> scope = this.scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name, "Already set variable with this name in this scope.");
+        Map<String, Boolean> scope = this.peekScope();
+        if (scope.containsKey(name)) {
+            this.error(position, "Already set variable with this name in this scope.");
         }
 
-        scope.put(name.lexeme, false);
+        scope.put(name, false);
     }
 
-    private void define(Token name) {
+    void define(String name) {
         if (this.scopes.isEmpty()) {
             return;
         }
 
-        this.scopes.peek().put(name.lexeme, true);
+        this.peekScope().put(name, true);
+    }
+
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        this.beginScope();
+        this.resolve(stmt.variable);
+        this.resolve(stmt.condition);
+        this.resolve(stmt.body);
+        this.endScope();
+        return null;
     }
 
     @Override
@@ -228,45 +434,60 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
+        ClassType enclosingClass = this.beginClass(stmt.name, stmt.position, stmt.superclass);
+
+        for (Stmt.Function method : stmt.methods) {
+            this.resolveFunction(method, this.methodType(method.name));
+        }
+
+        this.endClass(stmt.superclass, enclosingClass, stmt);
+        return null;
+    }
+
+    /*
+     * Declares the class and opens the 'super' and 'this' scopes its methods are resolved in,
+     * returning the enclosing class type so that endClass can restore it.
+     */
+    ClassType beginClass(String name, int position, Expr.Variable superclass) {
         ClassType enclosingClass = this.currentClass;
         currentClass = ClassType.CLASS;
 
-        this.declare(stmt.name);
-        this.define(stmt.name);
+        this.declare(name, position);
+        this.define(name);
 
-        if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Lox.error(stmt.superclass.name, "A class cant inherit from itself.");
+        if (superclass != null && name.equals(superclass.name)) {
+            this.error(superclass.position, "A class cant inherit from itself.");
         }
 
-        if (stmt.superclass != null) {
+        if (superclass != null) {
             this.currentClass = ClassType.SUBCLASS;
-            this.resolve(stmt.superclass);
+            this.resolve(superclass);
         }
 
-        if (stmt.superclass != null) {
+        this.captures.add(new Capture(this.scopes.size()));
+
+        if (superclass != null) {
             this.beginScope();
-            scopes.peek().put("super", true);
+            this.peekScope().put("super", true);
         }
 
         this.beginScope();
-        this.scopes.peek().put("this", true);
-
-        for (Stmt.Function method : stmt.methods) {
-            FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("this")) {
-                declaration = FunctionType.INITIALIZER;
-            }
-            this.resolveFunction(method, declaration);
-        }
+        this.peekScope().put("this", true);
+        return enclosingClass;
+    }
 
+    void endClass(Expr.Variable superclass, ClassType enclosingClass, Stmt.Class stmt) {
         this.endScope();
 
-        if (stmt.superclass != null) {
+        if (superclass != null) {
             this.endScope();
         }
 
+        Capture capture = this.captures.remove(this.captures.size() - 1);
+        stmt.upvalues = capture.names();
+        stmt.upvalueDepths = capture.depths();
+
         this.currentClass = enclosingClass;
-        return null;
     }
 
     @Override
@@ -282,25 +503,50 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        this.resolve(expr.object);
+        this.resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+        this.resolve(expr.value);
+        this.resolve(expr.index);
+        this.resolve(expr.object);
+        return null;
+    }
+
     @Override
     public Void visitThisExpr(Expr.This expr) {
+        this.resolveThis(expr);
+        return null;
+    }
+
+    void resolveThis(Expr.This expr) {
         if (this.currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
-            return null;
+            this.error(expr.position, "Can't use 'this' outside of a class.");
+            return;
         }
-        this.resolveLocal(expr, expr.keyword);
-        return null;
+        this.resolveLocal(expr, "this");
     }
 
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
+        this.resolveSuper(expr);
+        return null;
+    }
+
+    void resolveSuper(Expr.Super expr) {
         if (this.currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'super' outside of a class");
+            this.error(expr.position, "Can't use 'super' outside of a class");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword, "Can't user 'super' with no superclass.");
+            this.error(expr.position, "Can't user 'super' with no superclass.");
         }
 
-        this.resolveLocal(expr, expr.keyword);
-        return null;
+        this.resolveLocal(expr, "super");
+        // A closure inside a method may have captured 'super' and 'this' into the same environment.
+        expr.thisDepth = this.lookUp("this");
     }
 }
@@ -1,10 +1,18 @@
 package com.ashwinchat.jlox;
 
 public class RuntimeError extends RuntimeException {
-    final Token token;
+    // Natives don't know where they were called from, so they report errors at this position and
+    // the call rethrows them at its own.
+    static final int AT_CALL = -1;
 
-    RuntimeError(Token token, String message) {
+    final int position;
+
+    RuntimeError(int position, String message) {
         super(message);
-        this.token = token;
+        this.position = position;
+    }
+
+    int line() {
+        return SourceMap.line(this.position);
     }
 }
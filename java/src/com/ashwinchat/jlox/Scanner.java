@@ -9,10 +9,17 @@ import static com.ashwinchat.jlox.TokenType.*;
 
 public class Scanner {
     private final String source;
+    private final int base;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    private boolean hadError = false;
+
+    // The '{' tokens still open, and the parentheses that were open outside each of them.
+    private final List<Token> braces = new ArrayList<>();
+    private final List<Integer> outerParens = new ArrayList<>();
+    private int parens = 0;
 
     private static final Map<String, TokenType> keywords;
 
@@ -39,6 +46,15 @@ public class Scanner {
 
     Scanner(String source) {
         this.source = source;
+        this.base = SourceMap.add(source);
+    }
+
+    int base() {
+        return this.base;
+    }
+
+    boolean hadError() {
+        return this.hadError;
     }
 
     List<Token> scanTokens() {
@@ -47,7 +63,7 @@ public class Scanner {
             scanToken();
         }
 
-        this.tokens.add(new Token(EOF, "", null, this.line));
+        this.tokens.add(new Token(EOF, "", null, this.line, this.base + this.current));
         return tokens;
     }
 
@@ -62,6 +78,8 @@ public class Scanner {
             case ')': this.addToken(RIGHT_PAREN); break;
             case '{': this.addToken(LEFT_BRACE); break;
             case '}': this.addToken(RIGHT_BRACE); break;
+            case '[': this.addToken(LEFT_BRACKET); break;
+            case ']': this.addToken(RIGHT_BRACKET); break;
             case ',': this.addToken(COMMA); break;
             case '.': this.addToken(DOT); break;
             case '-': this.addToken(MINUS); break;
@@ -119,12 +137,17 @@ public class Scanner {
                 } else if (this.isAlpha(c)) {
                     this.identifier();
                 } else {
-                    Lox.error(this.line, "Unexpected character.");
+                    this.error("Unexpected character.");
                 }
                 break;
         }
     }
 
+    private void error(String message) {
+        Lox.error(this.line, message);
+        this.hadError = true;
+    }
+
     private char advance() {
         return this.source.charAt(current++);
     }
@@ -135,7 +158,46 @@ public class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = this.source.substring(this.start, this.current);
-        this.tokens.add(new Token(type, text, literal, this.line));
+        Token token = new Token(type, text, literal, this.line, this.base + this.start);
+        this.tokens.add(token);
+        this.nest(token);
+    }
+
+    /*
+     * Marks the blocks that declare something directly inside them, so that a parser resolving as
+     * it goes knows whether a block needs a scope as soon as it opens it. A 'var' in parentheses
+     * belongs to a for loop's own scope.
+     */
+    private void nest(Token token) {
+        int last = this.braces.size() - 1;
+        switch (token.type) {
+            case LEFT_PAREN:
+                this.parens++;
+                break;
+            case RIGHT_PAREN:
+                this.parens--;
+                break;
+            case LEFT_BRACE:
+                this.braces.add(token);
+                this.outerParens.add(this.parens);
+                this.parens = 0;
+                break;
+            case RIGHT_BRACE:
+                if (last >= 0) {
+                    this.braces.remove(last);
+                    this.parens = this.outerParens.remove(last);
+                }
+                break;
+            case VAR:
+            case FUN:
+            case CLASS:
+                if (last >= 0 && this.parens == 0) {
+                    this.braces.get(last).declares = true;
+                }
+                break;
+            default:
+                break;
+        }
     }
 
     private boolean match(char expected) {
@@ -167,7 +229,7 @@ public class Scanner {
         }
 
         if (this.isAtEnd()) {
-            Lox.error(this.line, "Unterminated string.");
+            this.error("Unterminated string.");
             return;
         }
 
@@ -200,9 +262,9 @@ public class Scanner {
 
         this.addToken(
                 NUMBER,
-                Double.parseDouble(
+                Numbers.of(Double.parseDouble(
                         this.source.substring(this.start, this.current)
-                )
+                ))
         );
     }
 
@@ -222,7 +284,9 @@ public class Scanner {
         String text = this.source.substring(start, current);
         TokenType type = keywords.get(text);
         if (type == null) {
-            type = IDENTIFIER;
+            // Names are interned so that the AST shares one String per symbol.
+            this.tokens.add(new Token(IDENTIFIER, text.intern(), null, this.line, this.base + this.start));
+            return;
         }
         addToken(type);
     }
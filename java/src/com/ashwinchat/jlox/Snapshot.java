@@ -0,0 +1,563 @@
+package com.ashwinchat.jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The globals of an interpreter that has run a prelude, saved so that later processes can start
+ * from them without running the prelude again.
+ *
+ * A snapshot holds the prelude's resolved FlatAst, which every function value points into, and
+ * the graph of objects reachable from the globals. Objects are written in an order where
+ * everything an object is constructed from (its enclosing environment, superclass, closure or
+ * class) comes first, followed by a second section with their contents, so cycles between them
+ * need no special handling. Built-in functions are written by name.
+ */
+public class Snapshot {
+    // Bump whenever the object encoding changes.
+    static final int VERSION = 9;
+
+    private static final int MAGIC = 0x4a4c4f53;
+
+    // Object records.
+    private static final byte GLOBALS = 0;
+    private static final byte NATIVE = 1;
+    private static final byte ENVIRONMENT = 2;
+    private static final byte CLASS = 3;
+    private static final byte FUNCTION = 4;
+    private static final byte INSTANCE = 5;
+    private static final byte ARRAY = 6;
+    private static final byte UPVALUE = 7;
+    private static final byte NUMBER_ARRAY = 8;
+    private static final byte LIST = 9;
+    private static final byte SLICE = 10;
+    private static final byte MAP = 11;
+    private static final byte DIRECT_ARRAY = 12;
+    private static final byte MAPPED_ARRAY = 13;
+    private static final byte TABLE = 14;
+    private static final byte ROW = 15;
+
+    // Value tags.
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte REFERENCE = 5;
+
+    /*
+     * Saves the globals of an interpreter that has just run the given prelude.
+     */
+    static void write(Path path, String source, int base, List<Stmt> prelude, Interpreter interpreter) {
+        try {
+            Writer writer = new Writer(interpreter);
+            FlatAst program = FlatAst.encode(prelude, interpreter, writer.functions);
+            program.relocate(-base);
+            writer.collect();
+
+            Path directory = path.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "jlox", ".tmp");
+            try (OutputStream file = Files.newOutputStream(temporary)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(ProgramCache.hash(source));
+                program.write(out);
+                writer.write(out);
+                out.flush();
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | IllegalArgumentException error) {
+            System.err.println("Could not write snapshot: " + error.getMessage());
+        }
+    }
+
+    /*
+     * Defines the snapshot's globals in the interpreter. Returns false, leaving the interpreter
+     * untouched, if there is no usable snapshot of this prelude.
+     */
+    static boolean restore(Path path, String source, Interpreter interpreter) {
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return false;
+            }
+            byte[] hash = ProgramCache.hash(source);
+            byte[] stored = new byte[hash.length];
+            in.get(stored);
+            if (!Arrays.equals(stored, hash)) {
+                return false;
+            }
+
+            FlatAst program = FlatAst.read(in);
+            if (program == null) {
+                return false;
+            }
+            program.relocate(SourceMap.add(source));
+            Map<Integer, Stmt.Function> functions = new HashMap<>();
+            program.decode(interpreter, functions);
+
+            new Reader(interpreter, functions, in).read();
+            return true;
+        } catch (IOException | RuntimeException error) {
+            return false;
+        }
+    }
+
+    private static class Writer {
+        private final Interpreter interpreter;
+        final Map<Stmt.Function, Integer> functions = new IdentityHashMap<>();
+        private final Map<Object, String> nativeNames = new IdentityHashMap<>();
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final List<Object> objects = new ArrayList<>();
+        private final Deque<Object> pending = new ArrayDeque<>();
+
+        Writer(Interpreter interpreter) {
+            this.interpreter = interpreter;
+            for (Map.Entry<String, LoxCallable> entry : interpreter.natives.entrySet()) {
+                this.nativeNames.put(entry.getValue(), entry.getKey());
+            }
+        }
+
+        /*
+         * Numbers every object reachable from the globals.
+         */
+        void collect() {
+            this.id(this.interpreter.globals);
+            while (!this.pending.isEmpty()) {
+                Object object = this.pending.pop();
+                for (Object value : this.contents(object)) {
+                    if (isReference(value)) {
+                        this.id(value);
+                    }
+                }
+            }
+        }
+
+        private int id(Object object) {
+            Integer id = this.ids.get(object);
+            if (id != null) {
+                return id;
+            }
+
+            if (object instanceof Environment && object != this.interpreter.globals) {
+                Environment enclosing = ((Environment) object).enclosing;
+                if (enclosing != null) {
+                    this.id(enclosing);
+                }
+            } else if (object instanceof LoxClass) {
+                LoxClass superclass = ((LoxClass) object).superclass;
+                if (superclass != null) {
+                    this.id(superclass);
+                }
+            } else if (object instanceof LoxFunction) {
+                this.id(((LoxFunction) object).closure());
+            } else if (object instanceof LoxList && ((LoxList) object).list() != null) {
+                this.id(((LoxList) object).list());
+            } else if (object instanceof LoxRow) {
+                this.id(((LoxRow) object).table());
+            } else if (object instanceof LoxArray || object instanceof NumberArray || object instanceof LoxList
+                    || object instanceof LoxMap || object instanceof DirectArray || object instanceof LoxTable) {
+                // Arrays, lists, maps and tables have no class.
+            } else if (object instanceof LoxInstance) {
+                this.id(((LoxInstance) object).klass());
+            } else if (!(object instanceof Environment) && !(object instanceof Upvalue)
+                    && !this.nativeNames.containsKey(object)) {
+                throw new IllegalArgumentException("Can't snapshot " + object + ".");
+            }
+
+            id = this.objects.size();
+            this.ids.put(object, id);
+            this.objects.add(object);
+            this.pending.push(object);
+            return id;
+        }
+
+        private List<Object> contents(Object object) {
+            List<Object> contents = new ArrayList<>();
+            if (object instanceof Environment) {
+                contents.addAll(((Environment) object).values().values());
+            } else if (object instanceof LoxClass) {
+                contents.addAll(((LoxClass) object).methods().values());
+            } else if (object instanceof LoxArray) {
+                contents.addAll(Arrays.asList(((LoxArray) object).elements()));
+            } else if (object instanceof LoxList) {
+                // A slice's elements are its list's.
+                if (((LoxList) object).list() == null) {
+                    contents.addAll(this.elements((LoxList) object));
+                }
+            } else if (object instanceof LoxMap) {
+                contents.addAll(((LoxMap) object).entries());
+            } else if (object instanceof LoxTable) {
+                contents.addAll(this.records((LoxTable) object));
+            } else if (object instanceof LoxInstance) {
+                contents.addAll(((LoxInstance) object).fields().values());
+            } else if (object instanceof Upvalue) {
+                contents.add(((Upvalue) object).value);
+            }
+            return contents;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(this.objects.size());
+            for (Object object : this.objects) {
+                if (object == this.interpreter.globals) {
+                    out.writeByte(GLOBALS);
+                } else if (this.nativeNames.containsKey(object)) {
+                    out.writeByte(NATIVE);
+                    writeString(out, this.nativeNames.get(object));
+                } else if (object instanceof Environment) {
+                    Environment enclosing = ((Environment) object).enclosing;
+                    out.writeByte(ENVIRONMENT);
+                    out.writeInt(enclosing == null ? -1 : this.ids.get(enclosing));
+                } else if (object instanceof LoxClass) {
+                    LoxClass klass = (LoxClass) object;
+                    out.writeByte(CLASS);
+                    writeString(out, klass.name);
+                    out.writeInt(klass.superclass == null ? -1 : this.ids.get(klass.superclass));
+                } else if (object instanceof LoxFunction) {
+                    LoxFunction function = (LoxFunction) object;
+                    out.writeByte(FUNCTION);
+                    out.writeInt(this.functions.get(function.declaration()));
+                    out.writeInt(this.ids.get(function.closure()));
+                    out.writeBoolean(function.isInitializer());
+                } else if (object instanceof LoxArray) {
+                    out.writeByte(ARRAY);
+                    out.writeInt(((LoxArray) object).elements().length);
+                } else if (object instanceof NumberArray) {
+                    out.writeByte(NUMBER_ARRAY);
+                    out.writeInt(((NumberArray) object).length());
+                } else if (object instanceof DirectArray && ((DirectArray) object).path() != null) {
+                    // A mapped array is mapped again from its file, which keeps its elements.
+                    out.writeByte(MAPPED_ARRAY);
+                    writeString(out, ((DirectArray) object).path());
+                    out.writeInt(((DirectArray) object).length());
+                } else if (object instanceof DirectArray) {
+                    out.writeByte(DIRECT_ARRAY);
+                    out.writeInt(((DirectArray) object).length());
+                } else if (object instanceof LoxList && ((LoxList) object).list() != null) {
+                    LoxList slice = (LoxList) object;
+                    out.writeByte(SLICE);
+                    out.writeInt(this.ids.get(slice.list()));
+                    out.writeInt(slice.offset());
+                    out.writeInt(slice.window());
+                } else if (object instanceof LoxList) {
+                    out.writeByte(LIST);
+                } else if (object instanceof LoxMap) {
+                    out.writeByte(MAP);
+                } else if (object instanceof LoxTable) {
+                    String[] names = ((LoxTable) object).names();
+                    out.writeByte(TABLE);
+                    out.writeInt(names.length);
+                    for (String name : names) {
+                        writeString(out, name);
+                    }
+                } else if (object instanceof LoxRow) {
+                    out.writeByte(ROW);
+                    out.writeInt(this.ids.get(((LoxRow) object).table()));
+                    out.writeInt(((LoxRow) object).row());
+                } else if (object instanceof Upvalue) {
+                    out.writeByte(UPVALUE);
+                } else {
+                    out.writeByte(INSTANCE);
+                    out.writeInt(this.ids.get(((LoxInstance) object).klass()));
+                }
+            }
+
+            for (Object object : this.objects) {
+                if (object instanceof Environment) {
+                    this.writeFields(out, ((Environment) object).values());
+                } else if (object instanceof LoxClass) {
+                    this.writeFields(out, ((LoxClass) object).methods());
+                } else if (object instanceof LoxArray) {
+                    for (Object element : ((LoxArray) object).elements()) {
+                        this.writeValue(out, element);
+                    }
+                } else if (object instanceof NumberArray) {
+                    for (double value : ((NumberArray) object).values()) {
+                        out.writeDouble(value);
+                    }
+                } else if (object instanceof DirectArray && ((DirectArray) object).path() == null) {
+                    DirectArray array = (DirectArray) object;
+                    for (int i = 0; i < array.length(); i++) {
+                        out.writeDouble(array.getDouble(i));
+                    }
+                } else if (object instanceof LoxList) {
+                    if (((LoxList) object).list() == null) {
+                        List<Object> elements = this.elements((LoxList) object);
+                        out.writeInt(elements.size());
+                        for (Object element : elements) {
+                            this.writeValue(out, element);
+                        }
+                    }
+                } else if (object instanceof LoxMap) {
+                    // Keys and values alternate.
+                    List<Object> entries = ((LoxMap) object).entries();
+                    out.writeInt(entries.size() / 2);
+                    for (Object value : entries) {
+                        this.writeValue(out, value);
+                    }
+                } else if (object instanceof LoxTable) {
+                    // The fields of each record in turn.
+                    out.writeInt(((LoxTable) object).length());
+                    for (Object value : this.records((LoxTable) object)) {
+                        this.writeValue(out, value);
+                    }
+                } else if (object instanceof LoxInstance) {
+                    this.writeFields(out, ((LoxInstance) object).fields());
+                } else if (object instanceof Upvalue) {
+                    this.writeValue(out, ((Upvalue) object).value);
+                }
+            }
+        }
+
+        private List<Object> elements(LoxList list) {
+            List<Object> elements = new ArrayList<>();
+            for (int i = 0; i < list.length(); i++) {
+                elements.add(list.get(i));
+            }
+            return elements;
+        }
+
+        private List<Object> records(LoxTable table) {
+            List<Object> values = new ArrayList<>();
+            for (int row = 0; row < table.length(); row++) {
+                for (int field = 0; field < table.names().length; field++) {
+                    values.add(table.value(row, field));
+                }
+            }
+            return values;
+        }
+
+        private void writeFields(DataOutputStream out, Map<String, ?> fields) throws IOException {
+            out.writeInt(fields.size());
+            for (Map.Entry<String, ?> field : fields.entrySet()) {
+                writeString(out, field.getKey());
+                this.writeValue(out, field.getValue());
+            }
+        }
+
+        private void writeValue(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (Numbers.isNumber(value)) {
+                out.writeByte(NUMBER);
+                out.writeDouble(Numbers.toDouble(value));
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString(out, (String) value);
+            } else {
+                out.writeByte(REFERENCE);
+                out.writeInt(this.ids.get(value));
+            }
+        }
+
+        private static boolean isReference(Object value) {
+            return value != null && !(value instanceof Boolean) && !Numbers.isNumber(value) && !(value instanceof String);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static class Reader {
+        private final Interpreter interpreter;
+        private final Map<Integer, Stmt.Function> functions;
+        private final ByteBuffer in;
+        private Object[] objects;
+
+        Reader(Interpreter interpreter, Map<Integer, Stmt.Function> functions, ByteBuffer in) {
+            this.interpreter = interpreter;
+            this.functions = functions;
+            this.in = in;
+        }
+
+        void read() {
+            this.objects = new Object[this.in.getInt()];
+            for (int id = 0; id < this.objects.length; id++) {
+                this.objects[id] = this.readObject();
+            }
+
+            // Nothing is defined until every record has been read, so a bad snapshot changes nothing.
+            List<Runnable> definitions = new ArrayList<>();
+            for (Object object : this.objects) {
+                if (object instanceof Environment) {
+                    Environment environment = (Environment) object;
+                    this.readFields(definitions, (name, value) -> environment.define(name, value));
+                } else if (object instanceof LoxClass) {
+                    Map<String, LoxFunction> methods = ((LoxClass) object).methods();
+                    this.readFields(definitions, (name, value) -> methods.put(name, (LoxFunction) value));
+                } else if (object instanceof LoxArray) {
+                    Object[] elements = ((LoxArray) object).elements();
+                    for (int i = 0; i < elements.length; i++) {
+                        elements[i] = this.readValue();
+                    }
+                } else if (object instanceof NumberArray) {
+                    this.in.asDoubleBuffer().get(((NumberArray) object).values());
+                    this.in.position(this.in.position() + ((NumberArray) object).length() * 8);
+                } else if (object instanceof DirectArray && ((DirectArray) object).path() == null) {
+                    DirectArray array = (DirectArray) object;
+                    for (int i = 0; i < array.length(); i++) {
+                        array.setDouble(i, this.in.getDouble());
+                    }
+                } else if (object instanceof LoxList) {
+                    LoxList list = (LoxList) object;
+                    if (list.list() == null) {
+                        int count = this.in.getInt();
+                        for (int i = 0; i < count; i++) {
+                            list.push(this.readValue());
+                        }
+                    }
+                } else if (object instanceof LoxMap) {
+                    LoxMap map = (LoxMap) object;
+                    int count = this.in.getInt();
+                    for (int i = 0; i < count; i++) {
+                        map.put(this.readValue(), this.readValue());
+                    }
+                } else if (object instanceof LoxTable) {
+                    LoxTable table = (LoxTable) object;
+                    int count = this.in.getInt();
+                    for (int i = 0; i < count; i++) {
+                        int row = table.add();
+                        for (int field = 0; field < table.names().length; field++) {
+                            table.store(row, field, this.readValue());
+                        }
+                    }
+                } else if (object instanceof LoxInstance) {
+                    Map<String, Object> fields = ((LoxInstance) object).fields();
+                    this.readFields(definitions, fields::put);
+                } else if (object instanceof Upvalue) {
+                    ((Upvalue) object).value = this.readValue();
+                }
+            }
+            for (Runnable definition : definitions) {
+                definition.run();
+            }
+        }
+
+        private Object readObject() {
+            byte kind = this.in.get();
+            switch (kind) {
+                case GLOBALS:
+                    // The prelude's globals are defined straight into the interpreter's own.
+                    return this.interpreter.globals;
+                case NATIVE:
+                    String name = this.readString();
+                    LoxCallable function = this.interpreter.natives.get(name);
+                    if (function == null) {
+                        throw new IllegalStateException("Unknown native '" + name + "'.");
+                    }
+                    return function;
+                case ENVIRONMENT:
+                    int enclosing = this.in.getInt();
+                    return enclosing < 0 ? new Environment() : new Environment((Environment) this.objects[enclosing]);
+                case CLASS:
+                    String className = this.readString();
+                    int superclass = this.in.getInt();
+                    return new LoxClass(
+                            className,
+                            superclass < 0 ? null : (LoxClass) this.objects[superclass],
+                            new HashMap<String, LoxFunction>());
+                case FUNCTION:
+                    Stmt.Function declaration = this.functions.get(this.in.getInt());
+                    Environment closure = (Environment) this.objects[this.in.getInt()];
+                    return new LoxFunction(declaration, closure, this.in.get() != 0);
+                case INSTANCE:
+                    return new LoxInstance((LoxClass) this.objects[this.in.getInt()]);
+                case ARRAY:
+                    return new LoxArray(this.in.getInt());
+                case NUMBER_ARRAY:
+                    return new NumberArray(this.in.getInt());
+                case LIST:
+                    return new LoxList();
+                case MAP:
+                    return new LoxMap();
+                case DIRECT_ARRAY:
+                    return DirectArray.allocate(this.in.getInt());
+                case TABLE:
+                    String[] names = new String[this.in.getInt()];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = this.readString();
+                    }
+                    return new LoxTable(names);
+                case ROW:
+                    LoxTable table = (LoxTable) this.objects[this.in.getInt()];
+                    return new LoxRow(table, this.in.getInt());
+                case MAPPED_ARRAY:
+                    String path = this.readString();
+                    return DirectArray.map(path, (long) this.in.getInt());
+                case SLICE:
+                    LoxList list = (LoxList) this.objects[this.in.getInt()];
+                    return new LoxList(list, this.in.getInt(), this.in.getInt());
+                case UPVALUE:
+                    return new Upvalue(null);
+            }
+            throw new IllegalStateException("Unknown snapshot record " + kind + ".");
+        }
+
+        private interface Definition {
+            void define(String name, Object value);
+        }
+
+        private void readFields(List<Runnable> definitions, Definition definition) {
+            int count = this.in.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = this.readString();
+                Object value = this.readValue();
+                definitions.add(() -> definition.define(name, value));
+            }
+        }
+
+        private Object readValue() {
+            byte tag = this.in.get();
+            switch (tag) {
+                case NIL:
+                    return null;
+                case TRUE:
+                    return true;
+                case FALSE:
+                    return false;
+                case NUMBER:
+                    return Numbers.of(this.in.getDouble());
+                case STRING:
+                    return this.readString();
+                case REFERENCE:
+                    return this.objects[this.in.getInt()];
+            }
+            throw new IllegalStateException("Unknown snapshot value " + tag + ".");
+        }
+
+        private String readString() {
+            byte[] bytes = new byte[this.in.getInt()];
+            this.in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8).intern();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.ashwinchat.jlox;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * The sort(array, comparator), parallelSort(array, comparator) and
+ * binarySearch(array, value, comparator) natives, which work on arrays, number arrays and lists.
+ *
+ * A nil comparator sorts numbers and strings in their natural order. Arrays of nothing but
+ * numbers are sorted as doubles, and number arrays in place. A comparator is a Lox function of
+ * two elements that returns a negative number, zero or a positive number, and is called with the
+ * same argument list for every comparison. The interpreter can only run on one thread, so a
+ * parallel sort with a comparator is sorted like any other.
+ */
+final class Sorting {
+    private Sorting() {
+    }
+
+    static void sort(Interpreter interpreter, Object array, Object comparator, boolean parallel) {
+        Indexable elements = indexable(array);
+        if (comparator != null) {
+            sortWith(elements, new LoxComparator(interpreter, comparator));
+        } else if (elements instanceof NumberArray) {
+            double[] values = ((NumberArray) elements).values();
+            if (parallel) {
+                Arrays.parallelSort(values);
+            } else {
+                Arrays.sort(values);
+            }
+        } else if (allNumbers(elements)) {
+            double[] values = new double[elements.length()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Numbers.toDouble(elements.get(i));
+            }
+            if (parallel) {
+                Arrays.parallelSort(values);
+            } else {
+                Arrays.sort(values);
+            }
+            for (int i = 0; i < values.length; i++) {
+                elements.set(i, RuntimeError.AT_CALL, Numbers.of(values[i]));
+            }
+        } else if (allStrings(elements)) {
+            String[] values = new String[elements.length()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (String) elements.get(i);
+            }
+            if (parallel) {
+                Arrays.parallelSort(values);
+            } else {
+                Arrays.sort(values);
+            }
+            for (int i = 0; i < values.length; i++) {
+                elements.set(i, RuntimeError.AT_CALL, values[i]);
+            }
+        } else {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Can only sort numbers or strings without a comparator.");
+        }
+    }
+
+    /*
+     * Returns the index of a value in a sorted array, or -(i + 1) when it isn't there and would be
+     * inserted at i.
+     */
+    static Object binarySearch(Interpreter interpreter, Object array, Object value, Object comparator) {
+        Indexable elements = indexable(array);
+        Comparator<Object> order = comparator == null ? Sorting::compare : new LoxComparator(interpreter, comparator);
+        int low = 0;
+        int high = elements.length() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = order.compare(elements.get(middle), value);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return (long) middle;
+            }
+        }
+        return (long) -(low + 1);
+    }
+
+    private static Indexable indexable(Object array) {
+        if (array instanceof Indexable) {
+            return (Indexable) array;
+        }
+        throw new RuntimeError(RuntimeError.AT_CALL, "Only arrays can be sorted.");
+    }
+
+    private static void sortWith(Indexable elements, Comparator<Object> comparator) {
+        Object[] values = new Object[elements.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = elements.get(i);
+        }
+        try {
+            Arrays.sort(values, comparator);
+        } catch (IllegalArgumentException error) {
+            // TimSort noticed that the comparator contradicts itself.
+            throw new RuntimeError(RuntimeError.AT_CALL, "Comparator is inconsistent.");
+        }
+        if (elements.length() != values.length) {
+            throw new RuntimeError(RuntimeError.AT_CALL, "Array changed size during sort.");
+        }
+        for (int i = 0; i < values.length; i++) {
+            elements.set(i, RuntimeError.AT_CALL, values[i]);
+        }
+    }
+
+    private static boolean allNumbers(Indexable elements) {
+        for (int i = 0; i < elements.length(); i++) {
+            if (!Numbers.isNumber(elements.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean allStrings(Indexable elements) {
+        for (int i = 0; i < elements.length(); i++) {
+            if (!(elements.get(i) instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compare(Object left, Object right) {
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Double.compare(Numbers.toDouble(left), Numbers.toDouble(right));
+        }
+        if (left instanceof String && right instanceof String) {
+            return ((String) left).compareTo((String) right);
+        }
+        throw new RuntimeError(RuntimeError.AT_CALL, "Can only compare numbers or strings without a comparator.");
+    }
+
+    private static final class LoxComparator implements Comparator<Object> {
+        private final Interpreter interpreter;
+        private final LoxCallable function;
+        private final List<Object> arguments = Arrays.asList(new Object[2]);
+
+        LoxComparator(Interpreter interpreter, Object comparator) {
+            if (!(comparator instanceof LoxCallable) || ((LoxCallable) comparator).arity() != 2) {
+                throw new RuntimeError(RuntimeError.AT_CALL, "Expected a function of two arguments.");
+            }
+            this.interpreter = interpreter;
+            this.function = (LoxCallable) comparator;
+        }
+
+        @Override
+        public int compare(Object left, Object right) {
+            this.arguments.set(0, left);
+            this.arguments.set(1, right);
+            Object result = this.interpreter.callBack(this.function, this.arguments);
+            if (!Numbers.isNumber(result)) {
+                throw new RuntimeError(RuntimeError.AT_CALL, "Comparator must return a number.");
+            }
+            double order = Numbers.toDouble(result);
+            return order < 0 ? -1 : order > 0 ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.ashwinchat.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Every source text the scanner has seen, so that the AST can refer to a token by a single int
+ * position instead of keeping the Token alive.
+ *
+ * Each source is given a base and a position is the base plus the token's offset in that source,
+ * which keeps positions unique across the REPL lines and files loaded by one process. Lines and
+ * lexemes are only reconstructed from the source when an error is reported.
+ *
+ * A source has to be kept for as long as anything made from it can report an error, which for a
+ * program that defines functions or classes is for good. Other programs are released once they
+ * have run, and the positions after the last source still kept are given out again, so a REPL
+ * session only holds on to the lines that defined something.
+ */
+public class SourceMap {
+    private static final List<SourceFile> files = new ArrayList<>();
+    private static int nextBase = 0;
+
+    private static class SourceFile {
+        final int base;
+        final String source;
+        private int[] lineStarts;
+
+        SourceFile(int base, String source) {
+            this.base = base;
+            this.source = source;
+        }
+
+        // The base of whatever source is added after it, leaving room for the EOF token's position.
+        int end() {
+            return this.base + this.source.length() + 1;
+        }
+
+        // Errors can be reported from several threads at once.
+        synchronized int line(int offset) {
+            if (this.lineStarts == null) {
+                this.lineStarts = this.computeLineStarts();
+            }
+            int index = Arrays.binarySearch(this.lineStarts, offset);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return index + 1;
+        }
+
+        private int[] computeLineStarts() {
+            int count = 1;
+            for (int i = 0; i < this.source.length(); i++) {
+                if (this.source.charAt(i) == '\n') {
+                    count++;
+                }
+            }
+
+            int[] lineStarts = new int[count];
+            int line = 1;
+            for (int i = 0; i < this.source.length(); i++) {
+                if (this.source.charAt(i) == '\n') {
+                    lineStarts[line++] = i + 1;
+                }
+            }
+            return lineStarts;
+        }
+    }
+
+    /*
+     * Registers a source text and returns the base to add to offsets within it.
+     */
+    static synchronized int add(String source) {
+        if (source.length() >= Integer.MAX_VALUE - nextBase) {
+            throw new IllegalStateException("Too much source text is loaded to give it positions.");
+        }
+        SourceFile file = new SourceFile(nextBase, source);
+        files.add(file);
+        nextBase = file.end();
+        return file.base;
+    }
+
+    /*
+     * Forgets the source added with the given base, once nothing that refers to positions in it
+     * is left.
+     */
+    static synchronized void release(int base) {
+        SourceFile file = find(base);
+        if (file.base != base) {
+            return;
+        }
+        files.remove(file);
+        nextBase = files.isEmpty() ? 0 : files.get(files.size() - 1).end();
+    }
+
+    /*
+     * Returns a position's offset within its own source.
+     */
+    static int offset(int position) {
+        return position - find(position).base;
+    }
+
+    static String source(int position) {
+        return find(position).source;
+    }
+
+    static int line(int position) {
+        SourceFile file = find(position);
+        return file.line(position - file.base);
+    }
+
+    /*
+     * Rescans the token starting at a position to recover its lexeme.
+     */
+    static String lexeme(int position) {
+        SourceFile file = find(position);
+        String source = file.source;
+        int start = position - file.base;
+        if (start >= source.length()) {
+            return "";
+        }
+
+        int end = start + 1;
+        char c = source.charAt(start);
+        if (isAlpha(c)) {
+            while (end < source.length() && (isAlpha(source.charAt(end)) || isDigit(source.charAt(end)))) {
+                end++;
+            }
+        } else if (isDigit(c)) {
+            while (end < source.length() && (isDigit(source.charAt(end)) || source.charAt(end) == '.')) {
+                end++;
+            }
+        } else if (c == '"') {
+            int close = source.indexOf('"', end);
+            end = close < 0 ? source.length() : close + 1;
+        } else if (end < source.length() && source.charAt(end) == '=' && "!=<>".indexOf(c) >= 0) {
+            end++;
+        }
+        return source.substring(start, end);
+    }
+
+    private static synchronized SourceFile find(int position) {
+        int low = 0;
+        int high = files.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (files.get(mid).base <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return files.get(low);
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') ||
+                (c >= 'A' && c <= 'Z') ||
+                c == '_';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -9,6 +9,7 @@ abstract class Stmt {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
         R visitBreakStmt(Break stmt);
+        R visitCountedStmt(Counted stmt);
         R visitExpressionStmt(Expression stmt);
         R visitFunctionStmt(Function stmt);
         R visitIfStmt(If stmt);
@@ -17,9 +18,10 @@ abstract class Stmt {
         R visitVarStmt(Var stmt);
         R visitWhileStmt(While stmt);
     }
-    static class Block extends Stmt {
-        Block(List<Stmt> statements) {
+    static final class Block extends Stmt {
+        Block(List<Stmt> statements, boolean scoped) {
             this.statements = statements;
+            this.scoped = scoped;
         }
 
         @Override
@@ -27,11 +29,18 @@ abstract class Stmt {
             return visitor.visitBlockStmt(this);
         }
 
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitBlockStmt(this);
+        }
+
         final List<Stmt> statements;
+        final boolean scoped;
     }
-    static class Class extends Stmt {
-        Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+    static final class Class extends Stmt {
+        Class(String name, int position, Expr.Variable superclass, List<Stmt.Function> methods) {
             this.name = name;
+            this.position = position;
             this.superclass = superclass;
             this.methods = methods;
         }
@@ -41,11 +50,19 @@ abstract class Stmt {
             return visitor.visitClassStmt(this);
         }
 
-        final Token name;
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitClassStmt(this);
+        }
+
+        final String name;
+        final int position;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        String[] upvalues;
+        int[] upvalueDepths;
     }
-    static class Break extends Stmt {
+    static final class Break extends Stmt {
         Break() {
         }
 
@@ -54,8 +71,38 @@ abstract class Stmt {
             return visitor.visitBreakStmt(this);
         }
 
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitBreakStmt(this);
+        }
+
+    }
+    static final class Counted extends Stmt {
+        Counted(Stmt.Var variable, Expr.Binary condition, double step, boolean read, Stmt body) {
+            this.variable = variable;
+            this.condition = condition;
+            this.step = step;
+            this.read = read;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCountedStmt(this);
+        }
+
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitCountedStmt(this);
+        }
+
+        final Stmt.Var variable;
+        final Expr.Binary condition;
+        final double step;
+        final boolean read;
+        final Stmt body;
     }
-    static class Expression extends Stmt {
+    static final class Expression extends Stmt {
         Expression(Expr expression) {
             this.expression = expression;
         }
@@ -65,12 +112,19 @@ abstract class Stmt {
             return visitor.visitExpressionStmt(this);
         }
 
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitExpressionStmt(this);
+        }
+
         final Expr expression;
     }
-    static class Function extends Stmt {
-        Function(Token name, List<Token> params, List<Stmt> body) {
+    static final class Function extends Stmt {
+        Function(String name, int position, String[] params, int[] paramPositions, List<Stmt> body) {
             this.name = name;
+            this.position = position;
             this.params = params;
+            this.paramPositions = paramPositions;
             this.body = body;
         }
 
@@ -79,11 +133,20 @@ abstract class Stmt {
             return visitor.visitFunctionStmt(this);
         }
 
-        final Token name;
-        final List<Token> params;
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitFunctionStmt(this);
+        }
+
+        final String name;
+        final int position;
+        final String[] params;
+        final int[] paramPositions;
         final List<Stmt> body;
+        String[] upvalues;
+        int[] upvalueDepths;
     }
-    static class If extends Stmt {
+    static final class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
             this.condition = condition;
             this.thenBranch = thenBranch;
@@ -95,11 +158,16 @@ abstract class Stmt {
             return visitor.visitIfStmt(this);
         }
 
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitIfStmt(this);
+        }
+
         final Expr condition;
         final Stmt thenBranch;
         final Stmt elseBranch;
     }
-    static class Print extends Stmt {
+    static final class Print extends Stmt {
         Print(Expr expression) {
             this.expression = expression;
         }
@@ -109,11 +177,16 @@ abstract class Stmt {
             return visitor.visitPrintStmt(this);
         }
 
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitPrintStmt(this);
+        }
+
         final Expr expression;
     }
-    static class Return extends Stmt {
-        Return(Token keyword, Expr value) {
-            this.keyword = keyword;
+    static final class Return extends Stmt {
+        Return(int position, Expr value) {
+            this.position = position;
             this.value = value;
         }
 
@@ -122,12 +195,18 @@ abstract class Stmt {
             return visitor.visitReturnStmt(this);
         }
 
-        final Token keyword;
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitReturnStmt(this);
+        }
+
+        final int position;
         final Expr value;
     }
-    static class Var extends Stmt {
-        Var(Token name, Expr initializer) {
+    static final class Var extends Stmt {
+        Var(String name, int position, Expr initializer) {
             this.name = name;
+            this.position = position;
             this.initializer = initializer;
         }
 
@@ -136,10 +215,16 @@ abstract class Stmt {
             return visitor.visitVarStmt(this);
         }
 
-        final Token name;
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitVarStmt(this);
+        }
+
+        final String name;
+        final int position;
         final Expr initializer;
     }
-    static class While extends Stmt {
+    static final class While extends Stmt {
         While(Expr condition, Stmt body) {
             this.condition = condition;
             this.body = body;
@@ -150,9 +235,16 @@ abstract class Stmt {
             return visitor.visitWhileStmt(this);
         }
 
+        @Override
+        void execute(Interpreter interpreter) {
+            interpreter.visitWhileStmt(this);
+        }
+
         final Expr condition;
         final Stmt body;
     }
 
     abstract <R> R accept (Visitor<R> visitor);
+
+    abstract void execute(Interpreter interpreter);
 }
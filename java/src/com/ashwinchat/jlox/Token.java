@@ -5,12 +5,17 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    final int position;
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
+    // Set by the Scanner on a '{' whose block declares a variable, function or class directly.
+    boolean declares = false;
+
+    Token(TokenType type, String lexeme, Object literal, int line, int position) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.position = position;
     }
 
     @Override
@@ -0,0 +1,475 @@
+package com.ashwinchat.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Works out which operands of arithmetic and comparisons are certain to be numbers, so the
+ * interpreter can skip checking them.
+ *
+ * Each function is walked in order, tracking the type of every one of its variables. Branches are
+ * walked separately and merged, and a loop is walked until the types at its head stop changing.
+ * Variables of enclosing functions could have been changed by anything, so they are never known.
+ * Globals, and locals that a closure assigns, can change during any call, so they are forgotten
+ * whenever a call returns.
+ */
+class TypeInference implements Expr.Visitor<TypeInference.Type>, Stmt.Visitor<Void> {
+    private final List<Map<String, Variable>> scopes = new ArrayList<>();
+    private final Map<Expr, Boolean> checks = new IdentityHashMap<>();
+    private Map<Variable, Type> types = new HashMap<>();
+
+    // The types at each break out of the loops the walk is in, innermost last.
+    private List<List<Map<Variable, Type>>> loops = new ArrayList<>();
+
+    // Every variable a closure assigns, in the order they were found.
+    private final List<Variable> escapes = new ArrayList<>();
+
+    private int function = 0;
+    private int elided = 0;
+
+    enum Type {
+        NUMBER,
+        STRING,
+        BOOLEAN,
+        NIL,
+        UNKNOWN
+    }
+
+    private static class Variable {
+        final int function;
+        final int depth;
+        final boolean global;
+
+        // Set once a closure assigns the variable.
+        boolean escaped = false;
+
+        Variable(int function, int depth) {
+            this.function = function;
+            this.depth = depth;
+            this.global = depth == 1;
+        }
+    }
+
+    TypeInference() {
+        this.scopes.add(new HashMap<>());
+    }
+
+    /*
+     * Marks the operators of a program whose operands don't need checking. Bodies that haven't
+     * been parsed yet are left alone.
+     */
+    void infer(List<Stmt> statements) {
+        this.execute(statements);
+
+        for (Map.Entry<Expr, Boolean> check : this.checks.entrySet()) {
+            boolean numeric = check.getValue();
+            if (check.getKey() instanceof Expr.Binary) {
+                ((Expr.Binary) check.getKey()).numeric = numeric;
+            } else {
+                ((Expr.Unary) check.getKey()).numeric = numeric;
+            }
+            if (numeric) {
+                this.elided++;
+            }
+        }
+    }
+
+    int checks() {
+        return this.checks.size();
+    }
+
+    int elided() {
+        return this.elided;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) {
+            this.execute(stmt.statements);
+            return null;
+        }
+
+        this.beginScope();
+        this.execute(stmt.statements);
+        this.endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass != null) {
+            this.evaluate(stmt.superclass);
+        }
+        this.declare(stmt.name, Type.UNKNOWN);
+        for (Stmt.Function method : stmt.methods) {
+            this.function(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        this.breakLoop();
+        return null;
+    }
+
+    /*
+     * The counter is always a number in the body, since the loop checks its start before running
+     * the body and nothing else assigns it.
+     */
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        this.beginScope();
+        this.evaluate(stmt.variable.initializer);
+        this.declare(stmt.variable.name, Type.NUMBER);
+        this.loop(stmt.condition.right, stmt.body);
+        this.endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        this.evaluate(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        this.declare(stmt.name, Type.UNKNOWN);
+        this.function(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        this.evaluate(stmt.condition);
+        Map<Variable, Type> before = this.types;
+
+        this.types = new HashMap<>(before);
+        this.execute(stmt.thenBranch);
+        Map<Variable, Type> afterThen = this.types;
+
+        this.types = new HashMap<>(before);
+        if (stmt.elseBranch != null) {
+            this.execute(stmt.elseBranch);
+        }
+        this.types = join(afterThen, this.types);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        this.evaluate(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            this.evaluate(stmt.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Type type = stmt.initializer == null ? Type.NIL : this.evaluate(stmt.initializer);
+        this.declare(stmt.name, type);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        this.loop(stmt.condition, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        Type type = this.evaluate(expr.value);
+        Variable variable = this.lookUp(expr.name);
+        if (variable == null) {
+            return type;
+        }
+
+        if (variable.function == this.function) {
+            this.types.put(variable, type);
+        } else {
+            this.escape(variable);
+        }
+        return type;
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        Type left = this.evaluate(expr.left);
+        Type right = this.evaluate(expr.right);
+        boolean numeric = left == Type.NUMBER && right == Type.NUMBER;
+
+        switch (expr.operator) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                this.checks.put(expr, numeric);
+                return Type.BOOLEAN;
+            case MINUS:
+            case SLASH:
+            case STAR:
+                this.checks.put(expr, numeric);
+                return Type.NUMBER;
+            case PLUS:
+                this.checks.put(expr, numeric);
+                if (numeric) {
+                    return Type.NUMBER;
+                }
+                if (left == Type.STRING && (right == Type.STRING || right == Type.NUMBER)) {
+                    return Type.STRING;
+                }
+                return Type.UNKNOWN;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return Type.BOOLEAN;
+        }
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        this.evaluate(expr.callee);
+        for (Expr argument : expr.arguments) {
+            this.evaluate(argument);
+        }
+
+        this.types.keySet().removeIf(variable -> variable.global || variable.escaped);
+        // The callee can break out of the loop the call is in.
+        this.breakLoop();
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.Get expr) {
+        this.evaluate(expr.object);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return this.evaluate(expr.expression);
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            return Type.NIL;
+        }
+        if (Numbers.isNumber(expr.value)) {
+            return Type.NUMBER;
+        }
+        if (expr.value instanceof String) {
+            return Type.STRING;
+        }
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical expr) {
+        Type left = this.evaluate(expr.left);
+        Map<Variable, Type> before = new HashMap<>(this.types);
+        Type right = this.evaluate(expr.right);
+        this.types = join(before, this.types);
+        return left == right ? left : Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.Set expr) {
+        this.evaluate(expr.object);
+        return this.evaluate(expr.value);
+    }
+
+    @Override
+    public Type visitIndexExpr(Expr.Index expr) {
+        this.evaluate(expr.object);
+        this.evaluate(expr.index);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitSetIndexExpr(Expr.SetIndex expr) {
+        this.evaluate(expr.object);
+        this.evaluate(expr.index);
+        return this.evaluate(expr.value);
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.This expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitSuperExpr(Expr.Super expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        Type right = this.evaluate(expr.right);
+        if (expr.operator == TokenType.BANG) {
+            return Type.BOOLEAN;
+        }
+        this.checks.put(expr, right == Type.NUMBER);
+        return Type.NUMBER;
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        Variable variable = this.lookUp(expr.name);
+        if (variable == null || variable.function != this.function) {
+            return Type.UNKNOWN;
+        }
+        return this.types.getOrDefault(variable, Type.UNKNOWN);
+    }
+
+    /*
+     * Walks a loop until the types at its head are the same after a pass over the body as before
+     * it. Types only ever become unknown, so this takes a few passes at most. A closure in the body
+     * that starts assigning a variable from outside the loop takes another pass, since calls
+     * before it in the body could now change that variable.
+     */
+    private void loop(Expr condition, Stmt body) {
+        int depth = this.scopes.size();
+        Map<Variable, Type> head = this.types;
+        for (;;) {
+            int escapes = this.escapes.size();
+            this.types = new HashMap<>(head);
+            this.evaluate(condition);
+            Map<Variable, Type> exit = this.types;
+
+            this.loops.add(new ArrayList<>());
+            this.types = new HashMap<>(exit);
+            this.execute(body);
+            List<Map<Variable, Type>> breaks = this.loops.remove(this.loops.size() - 1);
+
+            Map<Variable, Type> next = join(head, this.types);
+            if (next.equals(head) && !this.escapedSince(escapes, depth)) {
+                for (Map<Variable, Type> types : breaks) {
+                    exit = join(exit, types);
+                }
+                this.types = exit;
+                return;
+            }
+            head = next;
+        }
+    }
+
+    private boolean escapedSince(int escapes, int depth) {
+        for (Variable variable : this.escapes.subList(escapes, this.escapes.size())) {
+            if (variable.depth <= depth) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void escape(Variable variable) {
+        if (!variable.global && !variable.escaped) {
+            variable.escaped = true;
+            this.escapes.add(variable);
+        }
+    }
+
+    private void breakLoop() {
+        if (!this.loops.isEmpty()) {
+            this.loops.get(this.loops.size() - 1).add(new HashMap<>(this.types));
+        }
+    }
+
+    private void function(Stmt.Function function) {
+        if (function.body instanceof LazyBody && !((LazyBody) function.body).isResolved()) {
+            // Without the statements, any variable the body names could be assigned by it.
+            for (String name : ((LazyBody) function.body).names()) {
+                Variable variable = this.lookUp(name);
+                if (variable != null) {
+                    this.escape(variable);
+                }
+            }
+            return;
+        }
+
+        Map<Variable, Type> enclosingTypes = this.types;
+        List<List<Map<Variable, Type>>> enclosingLoops = this.loops;
+        this.types = new HashMap<>();
+        this.loops = new ArrayList<>();
+        this.function++;
+
+        this.beginScope();
+        for (String param : function.params) {
+            this.declare(param, Type.UNKNOWN);
+        }
+        this.execute(function.body);
+        this.endScope();
+
+        this.function--;
+        this.types = enclosingTypes;
+        this.loops = enclosingLoops;
+    }
+
+    /*
+     * Keeps the types two paths agree on.
+     */
+    private static Map<Variable, Type> join(Map<Variable, Type> a, Map<Variable, Type> b) {
+        Map<Variable, Type> types = new HashMap<>();
+        for (Map.Entry<Variable, Type> entry : a.entrySet()) {
+            if (entry.getValue() == b.get(entry.getKey())) {
+                types.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return types;
+    }
+
+    private void declare(String name, Type type) {
+        Map<String, Variable> scope = this.scopes.get(this.scopes.size() - 1);
+        Variable variable = scope.get(name);
+        if (variable == null) {
+            variable = new Variable(this.function, this.scopes.size());
+            scope.put(name, variable);
+        }
+        this.types.put(variable, type);
+    }
+
+    private Variable lookUp(String name) {
+        for (int i = this.scopes.size() - 1; i >= 0; i--) {
+            Variable variable = this.scopes.get(i).get(name);
+            if (variable != null) {
+                return variable;
+            }
+        }
+        return null;
+    }
+
+    private void beginScope() {
+        this.scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        Map<String, Variable> scope = this.scopes.remove(this.scopes.size() - 1);
+        this.types.keySet().removeAll(scope.values());
+    }
+
+    private void execute(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void execute(Stmt statement) {
+        statement.accept(this);
+    }
+
+    private Type evaluate(Expr expr) {
+        return expr.accept(this);
+    }
+}
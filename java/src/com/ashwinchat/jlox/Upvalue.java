@@ -0,0 +1,14 @@
+package com.ashwinchat.jlox;
+
+/*
+ * A box holding a local variable that a closure has captured. The environment the variable was
+ * declared in and every closure that captured it share the box, so assignments through any of
+ * them are seen by all.
+ */
+class Upvalue {
+    Object value;
+
+    Upvalue(Object value) {
+        this.value = value;
+    }
+}
@@ -9,37 +9,48 @@ public class GenerateAst {
     private static final String ONE_INDENT = "    ";
     private static final String TWO_INDENT = "        ";
     private static final String THREE_INDENT = "            ";
+
+    // Whether to generate final nodes that also call the interpreter directly. Accepting a visitor
+    // dispatches twice, and the second call sees every visitor, while a node's own evaluate or
+    // execute method always calls the same interpreter method.
+    private static boolean direct = false;
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.err.println("Usage: generate_ast <output directory>");
+        if (args.length == 2 && args[0].equals("--direct")) {
+            direct = true;
+        } else if (args.length != 1) {
+            System.err.println("Usage: generate_ast [--direct] <output directory>");
             System.exit(64);
         }
-        String outputDir = args[0];
+        String outputDir = args[args.length - 1];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Assign   : String name, int position, Expr value : int slot = -1",
+                "Binary   : Expr left, TokenType operator, int position, Expr right : boolean numeric",
+                "Call     : Expr callee, int position, List<Expr> arguments : Object checkedCallee",
+                "Get      : Expr object, String name, int position",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
-                "Logical  : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "This     : Token keyword",
-                "Super    : Token keyword, Token method",
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Logical  : Expr left, TokenType operator, Expr right",
+                "Set      : Expr object, String name, int position, Expr value",
+                "Index    : Expr object, int position, Expr index",
+                "SetIndex : Expr object, int position, Expr index, Expr value",
+                "This     : int position",
+                "Super    : int position, String method, int methodPosition : int thisDepth = -1",
+                "Unary    : TokenType operator, int position, Expr right : boolean numeric",
+                "Variable : String name, int position : int slot = -1, GlobalEnvironment.Constant constant"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Block      : List<Stmt> statements, boolean scoped",
+                "Class      : String name, int position, Expr.Variable superclass, List<Stmt.Function> methods : String[] upvalues, int[] upvalueDepths",
                 "Break      : ",
+                "Counted    : Stmt.Var variable, Expr.Binary condition, double step, boolean read, Stmt body",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : String name, int position, String[] params, int[] paramPositions, List<Stmt> body : String[] upvalues, int[] upvalueDepths",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
+                "Return     : int position, Expr value",
+                "Var        : String name, int position, Expr initializer",
                 "While      : Expr condition, Stmt body"
         ));
     }
@@ -62,17 +73,31 @@ public class GenerateAst {
             String[] splitType = type.split(":");
             String className = splitType[0].trim();
             String fields = splitType[1].trim();
-            defineType(writer, baseName, className, fields);
+            // An optional third section declares mutable fields that the interpreter fills in.
+            String mutableFields = splitType.length > 2 ? splitType[2].trim() : "";
+            defineType(writer, baseName, className, fields, mutableFields);
         }
 
         // The base accept() method
         writer.println();
         writer.println(ONE_INDENT + "abstract <R> R accept (Visitor<R> visitor);");
+        if (direct) {
+            writer.println();
+            writer.println(ONE_INDENT + "abstract " + directSignature(baseName) + ";");
+        }
 
         writer.println("}");
         writer.close();
     }
 
+    // Expressions are evaluated for their value and statements executed for their effect.
+    private static String directSignature(String baseName) {
+        if (baseName.equals("Expr")) {
+            return "Object evaluate(Interpreter interpreter)";
+        }
+        return "void execute(Interpreter interpreter)";
+    }
+
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
         writer.println(ONE_INDENT + "interface Visitor<R> {");
 
@@ -84,8 +109,8 @@ public class GenerateAst {
         writer.println(ONE_INDENT + "}");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-        writer.println(ONE_INDENT + "static class " + className + " extends " + baseName + " {");
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String mutableFieldList) {
+        writer.println(ONE_INDENT + "static " + (direct ? "final " : "") + "class " + className + " extends " + baseName + " {");
 
         // Constructor
         writer.println(TWO_INDENT + className + "(" + fieldList + ") {");
@@ -111,11 +136,25 @@ public class GenerateAst {
         writer.println(THREE_INDENT + "return visitor.visit" + className + baseName + "(this);");
         writer.println(TWO_INDENT + "}");
 
+        if (direct) {
+            writer.println();
+            writer.println(TWO_INDENT + "@Override");
+            writer.println(TWO_INDENT + directSignature(baseName) + " {");
+            String call = "interpreter.visit" + className + baseName + "(this);";
+            writer.println(THREE_INDENT + (baseName.equals("Expr") ? "return " : "") + call);
+            writer.println(TWO_INDENT + "}");
+        }
+
         // Fields
         writer.println();
         for (String field : fields) {
             writer.println(TWO_INDENT + "final " + field + ";");
         }
+        if (!mutableFieldList.isEmpty()) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println(TWO_INDENT + field + ";");
+            }
+        }
 
         writer.println(ONE_INDENT + "}");
     }
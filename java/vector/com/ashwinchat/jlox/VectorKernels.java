@@ -0,0 +1,72 @@
+package com.ashwinchat.jlox;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * The bulk loops over number arrays, a vector of doubles at a time with whatever width the CPU
+ * does best, and the elements left over one at a time. Only loaded by Bulk when the
+ * jdk.incubator.vector module is. It lives outside src so the interpreter builds without the
+ * module.
+ */
+final class VectorKernels implements Bulk.Kernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double sum(double[] values) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, values, i));
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < values.length; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public double dot(double[] left, double[] right) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(left.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector a = DoubleVector.fromArray(SPECIES, left, i);
+            DoubleVector b = DoubleVector.fromArray(SPECIES, right, i);
+            sums = sums.add(a.mul(b));
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < left.length; i++) {
+            sum += left[i] * right[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void scale(double[] values, double factor) {
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, values, i).mul(factor).intoArray(values, i);
+        }
+        for (; i < values.length; i++) {
+            values[i] *= factor;
+        }
+    }
+
+    @Override
+    public void add(double[] target, double[] source) {
+        int bound = SPECIES.loopBound(target.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector a = DoubleVector.fromArray(SPECIES, target, i);
+            a.add(DoubleVector.fromArray(SPECIES, source, i)).intoArray(target, i);
+        }
+        for (; i < target.length; i++) {
+            target[i] += source[i];
+        }
+    }
+}